@@ -0,0 +1,88 @@
+package org.apache.lucene.analysis.de.compounds.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.de.compounds.CompoundDictionary;
+import org.apache.lucene.analysis.de.compounds.GermanCompoundSplitter;
+import org.apache.lucene.analysis.de.compounds.SplitContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to load the bundled dictionary, until the first word is split.  Every invocation acquires
+ * the dictionary while nobody else holds it, so it is read (or mapped) again, and releases it.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(3)
+@State(Scope.Benchmark)
+public class DictionaryLoadBenchmark
+{
+    private static final String RESOURCE = "words.dict";
+
+    private static final char [] WORD = "Reisekosten".toCharArray();
+
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        file = Files.createTempFile("compound-benchmark", ".dict");
+        try (InputStream in = GermanCompoundSplitter.class.getResourceAsStream("/" + RESOURCE))
+        {
+            Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Read the classpath resource onto the heap, like {@link CompoundDictionary#getDefault()}.
+     */
+    @Benchmark
+    public int classpath()
+    {
+        try (CompoundDictionary dictionary = CompoundDictionary.acquire(RESOURCE))
+        {
+            return firstSplit(dictionary);
+        }
+    }
+
+    /**
+     * Memory map the dictionary file.
+     */
+    @Benchmark
+    public int mapped()
+    {
+        try (CompoundDictionary dictionary = CompoundDictionary.acquire(file))
+        {
+            return firstSplit(dictionary);
+        }
+    }
+
+    private static int firstSplit(CompoundDictionary dictionary)
+    {
+        return new GermanCompoundSplitter(dictionary).split(WORD, 0, WORD.length, new SplitContext());
+    }
+}
@@ -0,0 +1,85 @@
+package org.apache.lucene.analysis.de.compounds.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.de.compounds.CompoundDictionary;
+import org.apache.lucene.analysis.de.compounds.GraphGermanCompoundAnalyzer;
+import org.apache.lucene.analysis.de.compounds.GraphGermanCompoundTokenFilter;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to analyze a document of running German text (news style, about 300 tokens, a quarter of
+ * them compounds) with {@link GraphGermanCompoundAnalyzer}, i.e. whitespace tokenization and
+ * {@link GraphGermanCompoundTokenFilter}.  The analyzer reuses its components per thread, as
+ * an indexer does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class FilterBenchmark
+{
+    @Param({"5"})
+    public int minWordSize;
+
+    @Param({"false", "true"})
+    public boolean onlyLongestMatch;
+
+    @Param({"true"})
+    public boolean preserveOriginal;
+
+    private Analyzer analyzer;
+    private String text;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        analyzer = new GraphGermanCompoundAnalyzer(CompoundDictionary.getDefault(), minWordSize,
+            onlyLongestMatch, preserveOriginal);
+        text = Vocabulary.resource("german.txt");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        analyzer.close();
+    }
+
+    /**
+     * @return The number of chars of all tokens, consumed so nothing is optimized away.
+     */
+    @Benchmark
+    public int analyze() throws IOException
+    {
+        int chars = 0;
+        try (TokenStream stream = analyzer.tokenStream("body", text))
+        {
+            final CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken())
+            {
+                chars += term.length();
+            }
+            stream.end();
+        }
+        return chars;
+    }
+}
@@ -0,0 +1,96 @@
+package org.apache.lucene.analysis.de.compounds.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.de.compounds.CompoundDictionary;
+import org.apache.lucene.analysis.de.compounds.GermanCompoundSplitter;
+import org.apache.lucene.analysis.de.compounds.SplitContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Split latency with and without the opt-in compound prefix stage of {@link GermanCompoundSplitter},
+ * the cost of the decompositions it adds.  Both sides are variants of the bundled dictionary,
+ * detaching the prefixes of <code>compound-prefixes.txt</code> or none, so neither answers from the
+ * precomputed decompositions and the difference is the prefix stage alone.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class PrefixBenchmark
+{
+    /**
+     * See {@link Vocabulary}.
+     */
+    @Param({"prefixed", "frequency", "distinct"})
+    public String vocabulary;
+
+    /**
+     * <code>file</code> for the prefixes of the data directory, <code>none</code> to disable the
+     * prefix stage.
+     */
+    @Param({"file", "none"})
+    public String prefixes;
+
+    private CompoundDictionary dictionary;
+    private GermanCompoundSplitter splitter;
+    private char [][] terms;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        dictionary = CompoundDictionary.getDefault().withPrefixes(
+            "none".equals(prefixes) ? new String [0] : Vocabulary.readPrefixes());
+        splitter = new GermanCompoundSplitter(dictionary);
+        final String [] words = Vocabulary.load(vocabulary);
+        terms = new char [words.length][];
+        for (int i = 0; i < words.length; i++)
+        {
+            terms[i] = words[i].toCharArray();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        dictionary.close();
+    }
+
+    /**
+     * Per thread position in the vocabulary and reusable split state.
+     */
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+        final SplitContext context = new SplitContext();
+        int next;
+
+        int advance(int length)
+        {
+            final int current = next;
+            next = current + 1 == length ? 0 : current + 1;
+            return current;
+        }
+    }
+
+    @Benchmark
+    public int split(Cursor cursor)
+    {
+        final char [] term = terms[cursor.advance(terms.length)];
+        return splitter.split(term, 0, term.length, cursor.context);
+    }
+}
@@ -0,0 +1,190 @@
+package org.apache.lucene.analysis.de.compounds.benchmark;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.de.compounds.CompoundDictionary;
+import org.apache.lucene.analysis.de.compounds.DecompositionCache;
+import org.apache.lucene.analysis.de.compounds.GermanCompoundSplitter;
+import org.apache.lucene.analysis.de.compounds.SplitContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time per word of {@link GermanCompoundSplitter}, each invocation splits the next word of the
+ * vocabulary.  Run with <code>-prof gc</code> to see the allocations per word: the
+ * {@link SplitContext} variants should allocate nothing once warm.
+ *
+ * {@link #splitSingleThread(Cursor)} and {@link #splitAllThreads(Cursor)} measure how one splitter shared by
+ * concurrent callers scales: without locks, the throughput on all threads is the single thread
+ * throughput times the number of cores.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class SplitBenchmark
+{
+    /**
+     * See {@link Vocabulary}.
+     */
+    @Param({"test", "frequency", "distinct"})
+    public String vocabulary;
+
+    /**
+     * Decomposition cache capacity in chars, <code>0</code> for no cache.
+     */
+    @Param({"0", "1048576"})
+    public long cache;
+
+    /**
+     * <code>bundled</code> for the bundled dictionary.  <code>prefilter</code> and
+     * <code>plain</code> are its words written to a file again, without the precomputed
+     * decompositions, with and without its prefilter: over the <code>simple</code> vocabulary
+     * the difference is the time the prefilter saves per rejected term.
+     */
+    @Param({"bundled"})
+    public String dictionary;
+
+    private CompoundDictionary compounds;
+    private Path file;
+    private GermanCompoundSplitter splitter;
+    private String [] words;
+    private char [][] terms;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        compounds = open(dictionary);
+        splitter = cache > 0
+            ? new GermanCompoundSplitter(compounds, new DecompositionCache(cache))
+            : new GermanCompoundSplitter(compounds);
+        words = Vocabulary.load(vocabulary);
+        terms = new char [words.length][];
+        for (int i = 0; i < words.length; i++)
+        {
+            terms[i] = words[i].toCharArray();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        // the bundled dictionary is shared and stays open.
+        if (file != null)
+        {
+            compounds.close();
+            Files.delete(file);
+        }
+    }
+
+    private CompoundDictionary open(String name)
+    {
+        final CompoundDictionary bundled = CompoundDictionary.getDefault();
+        if ("bundled".equals(name))
+            return bundled;
+        if (!"prefilter".equals(name) && !"plain".equals(name))
+            throw new IllegalArgumentException("Unknown dictionary: " + name);
+        try
+        {
+            file = Files.createTempFile("split-benchmark", ".dict");
+            CompoundDictionary.write(bundled.getSurfaceForms(), bundled.getFormat(), bundled.getNormalizer(),
+                "plain".equals(name) ? null : bundled.getPrefilter(), file);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return CompoundDictionary.acquire(file);
+    }
+
+    /**
+     * Per thread position in the vocabulary and reusable split state.
+     */
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+        final SplitContext context = new SplitContext();
+        int next;
+
+        int advance(int length)
+        {
+            final int current = next;
+            next = current + 1 == length ? 0 : current + 1;
+            return current;
+        }
+    }
+
+    /**
+     * The allocation free API used by the token filter.
+     */
+    @Benchmark
+    public int split(Cursor cursor)
+    {
+        final char [] term = terms[cursor.advance(terms.length)];
+        return splitter.split(term, 0, term.length, cursor.context);
+    }
+
+    /**
+     * {@link #split(Cursor)} on a single thread, in words per microsecond.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Threads(1)
+    public int splitSingleThread(Cursor cursor)
+    {
+        return split(cursor);
+    }
+
+    /**
+     * {@link #split(Cursor)} on one thread per core, sharing the splitter (and its cache), in
+     * words per microsecond summed over the threads.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Threads(Threads.MAX)
+    public int splitAllThreads(Cursor cursor)
+    {
+        return split(cursor);
+    }
+
+    /**
+     * The three cheapest decompositions, by word frequency.
+     */
+    @Benchmark
+    public int splitBest(Cursor cursor)
+    {
+        final char [] term = terms[cursor.advance(terms.length)];
+        return splitter.splitBest(term, 0, term.length, 3, cursor.context);
+    }
+
+    /**
+     * The convenience API, materializing the decompositions as lists.
+     */
+    @Benchmark
+    public List<ArrayList<CharSequence>> splitToList(Cursor cursor)
+    {
+        return splitter.split(words[cursor.advance(words.length)]);
+    }
+}
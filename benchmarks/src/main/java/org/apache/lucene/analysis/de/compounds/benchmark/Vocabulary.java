@@ -0,0 +1,243 @@
+package org.apache.lucene.analysis.de.compounds.benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.lucene.analysis.de.compounds.GermanCompoundSplitter;
+
+/**
+ * Word lists the benchmarks run over.
+ *
+ * <ul>
+ *   <li><code>test</code>: the compounds of <code>TestGermanCompoundSplitter</code>.</li>
+ *   <li><code>frequency</code>: {@link #SAMPLE_SIZE} words drawn from
+ *   <code>morphy-google-intersect.20000</code> by their corpus frequency, a realistic mix of short,
+ *   frequent words and rare compounds as a tokenizer sees them.</li>
+ *   <li><code>distinct</code>: every word of <code>morphy-google-intersect.20000</code> once, the
+ *   cold vocabulary a cache can not help with.</li>
+ *   <li><code>simple</code>: the words of <code>morphy-google-intersect.20000</code> the bundled
+ *   dictionary does not decompose, the terms a prefilter rejects.</li>
+ *   <li><code>prefixed</code>: the words of <code>morphy-google-intersect.20000</code> starting with
+ *   one of the {@link #PREFIXES}, the terms the opt-in prefix stage of the splitter adds work to.</li>
+ * </ul>
+ *
+ * The data directory is taken from the <code>compounds.data</code> system property, by default
+ * <code>src/data</code> of the splitter checkout, found from the splitter or this directory.
+ */
+final class Vocabulary
+{
+    static final String FREQUENCIES = "morphy-google-intersect.20000";
+
+    static final String PREFIXES = "compound-prefixes.txt";
+
+    static final int SAMPLE_SIZE = 1 << 14;
+
+    /**
+     * Fixed seed, every run samples the same words.
+     */
+    private static final long SEED = 0x5EED;
+
+    static final List<String> TEST_WORDS = Arrays.asList(
+        "sünderecke",
+        "Servicebereich",
+        "Finanzgrundsatzangelegenheiten",
+        "Finanzermittlung",
+        "Reisekosten",
+        "Terrorismusfinanzierung",
+        "Beteiligungsmanagement",
+        "Medientechnologie",
+        "Hochschulabsolvent",
+        "beteiligungsbuchhalter",
+        "finanzanalyst",
+        "rechtsbeistand",
+        "Finanzdienstanwendungen",
+        "Finanzbuchhaltungsleitung",
+        "Applikationsmanagement",
+        "Kundenberater",
+        "Exportfinanzierung",
+        "Versicherungskaufmann",
+        "Anwendungsbetreuer");
+
+    private Vocabulary()
+    {
+    }
+
+    /**
+     * The words of the named vocabulary.
+     */
+    static String [] load(String name)
+    {
+        switch (name)
+        {
+            case "test":
+                return TEST_WORDS.toArray(new String [0]);
+            case "frequency":
+                return sample(readFrequencies(), SAMPLE_SIZE, new Random(SEED));
+            case "distinct":
+                return readFrequencies().words.toArray(new String [0]);
+            case "simple":
+                return simple(readFrequencies().words);
+            case "prefixed":
+                return prefixed(readFrequencies().words, readPrefixes());
+            default:
+                throw new IllegalArgumentException("Unknown vocabulary: " + name);
+        }
+    }
+
+    /**
+     * A file of the data directory.
+     */
+    static Path dataFile(String name)
+    {
+        final String configured = System.getProperty("compounds.data");
+        if (configured != null)
+        {
+            return Paths.get(configured, name);
+        }
+        for (String candidate : new String [] {"src/data", "../src/data"})
+        {
+            final Path path = Paths.get(candidate, name);
+            if (Files.exists(path))
+            {
+                return path;
+            }
+        }
+        throw new IllegalStateException("Can not find " + name
+            + ", set -Dcompounds.data to the splitter's src/data directory");
+    }
+
+    /**
+     * A classpath resource next to this class as a string.
+     */
+    static String resource(String name)
+    {
+        try (InputStream in = Vocabulary.class.getResourceAsStream(name))
+        {
+            if (in == null)
+            {
+                throw new IllegalStateException("Missing resource: " + name);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The compound prefixes of the data directory, case folded.
+     */
+    static String [] readPrefixes()
+    {
+        final List<String> prefixes = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(dataFile(PREFIXES), StandardCharsets.UTF_8))
+        {
+            for (String line; (line = reader.readLine()) != null;)
+            {
+                final String prefix = line.trim();
+                if (!prefix.isEmpty() && !prefix.startsWith("#"))
+                    prefixes.add(prefix.toLowerCase(Locale.ROOT));
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return prefixes.toArray(new String [0]);
+    }
+
+    private static String [] simple(List<String> words)
+    {
+        final GermanCompoundSplitter splitter = new GermanCompoundSplitter();
+        final List<String> simple = new ArrayList<>();
+        for (String word : words)
+        {
+            if (splitter.split(word).isEmpty())
+                simple.add(word);
+        }
+        return simple.toArray(new String [0]);
+    }
+
+    private static String [] prefixed(List<String> words, String [] prefixes)
+    {
+        final List<String> prefixed = new ArrayList<>();
+        for (String word : words)
+        {
+            final String folded = word.toLowerCase(Locale.ROOT);
+            for (String prefix : prefixes)
+            {
+                if (folded.length() > prefix.length() && folded.startsWith(prefix))
+                {
+                    prefixed.add(word);
+                    break;
+                }
+            }
+        }
+        return prefixed.toArray(new String [0]);
+    }
+
+    private static final class Frequencies
+    {
+        final List<String> words = new ArrayList<>();
+        long [] cumulative = new long [1024];
+    }
+
+    private static Frequencies readFrequencies()
+    {
+        final Frequencies frequencies = new Frequencies();
+        long total = 0;
+        try (BufferedReader reader = Files.newBufferedReader(dataFile(FREQUENCIES), StandardCharsets.UTF_8))
+        {
+            for (String line; (line = reader.readLine()) != null;)
+            {
+                final int tab = line.indexOf('\t');
+                if (tab <= 0)
+                    continue;
+                total += Long.parseLong(line.substring(tab + 1).trim());
+                if (frequencies.words.size() == frequencies.cumulative.length)
+                {
+                    frequencies.cumulative = Arrays.copyOf(frequencies.cumulative,
+                        frequencies.cumulative.length * 2);
+                }
+                frequencies.cumulative[frequencies.words.size()] = total;
+                frequencies.words.add(line.substring(0, tab));
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return frequencies;
+    }
+
+    private static String [] sample(Frequencies frequencies, int size, Random random)
+    {
+        final int count = frequencies.words.size();
+        final long total = frequencies.cumulative[count - 1];
+        final String [] sample = new String [size];
+        for (int i = 0; i < size; i++)
+        {
+            final long draw = (long) (random.nextDouble() * total);
+            int index = Arrays.binarySearch(frequencies.cumulative, 0, count, draw + 1);
+            if (index < 0)
+            {
+                index = -index - 1;
+            }
+            sample[i] = frequencies.words.get(index);
+        }
+        return sample;
+    }
+}
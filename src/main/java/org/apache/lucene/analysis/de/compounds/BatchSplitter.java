@@ -0,0 +1,198 @@
+package org.apache.lucene.analysis.de.compounds;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.stream.Collector;
+
+/**
+ * Batch decompounding for {@link GermanCompoundSplitter}: fork/join over an array of terms,
+ * a spliterator and a collector for streams.  Every leaf task, spliterator and collector
+ * container reuses one {@link SplitContext}, the dictionary is shared.
+ */
+final class BatchSplitter
+{
+    /**
+     * Terms per leaf task, enough to amortize forking and the context, small enough to balance
+     * the heavily varying cost of terms.
+     */
+    static final int LEAF_SIZE = 256;
+
+    private BatchSplitter()
+    {
+    }
+
+    /**
+     * The decompositions of a term, like {@link GermanCompoundSplitter#split(CharSequence)} but
+     * with the given context.
+     */
+    static List<ArrayList<CharSequence>> split(GermanCompoundSplitter splitter, CharSequence term,
+        SplitContext context)
+    {
+        final char [] chars = term.toString().toCharArray();
+        splitter.split(chars, 0, chars.length, context);
+        return GermanCompoundSplitter.decompositions(chars, 0, context);
+    }
+
+    /**
+     * Split all terms in the pool, results are in the order of the terms.
+     */
+    static List<List<ArrayList<CharSequence>>> splitAll(GermanCompoundSplitter splitter,
+        CharSequence [] terms, ForkJoinPool pool)
+    {
+        @SuppressWarnings("unchecked")
+        final List<ArrayList<CharSequence>> [] results = new List [terms.length];
+        if (terms.length <= LEAF_SIZE)
+        {
+            // not worth a task.
+            new SplitTask(splitter, terms, results, 0, terms.length).compute();
+        }
+        else
+        {
+            pool.invoke(new SplitTask(splitter, terms, results, 0, terms.length));
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Splits a range of terms, halving it down to {@link #LEAF_SIZE} terms.
+     */
+    private static final class SplitTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final GermanCompoundSplitter splitter;
+        private final CharSequence [] terms;
+        private final List<ArrayList<CharSequence>> [] results;
+        private final int from;
+        private final int to;
+
+        SplitTask(GermanCompoundSplitter splitter, CharSequence [] terms,
+            List<ArrayList<CharSequence>> [] results, int from, int to)
+        {
+            this.splitter = splitter;
+            this.terms = terms;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from > LEAF_SIZE)
+            {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new SplitTask(splitter, terms, results, from, mid),
+                    new SplitTask(splitter, terms, results, mid, to));
+                return;
+            }
+            final SplitContext context = new SplitContext();
+            for (int i = from; i < to; i++)
+            {
+                results[i] = split(splitter, terms[i], context);
+            }
+        }
+    }
+
+    /**
+     * Maps a spliterator of terms to (term, decompositions) entries.  Splitting it splits the
+     * source, every part has its own context, so it parallelizes like the source does.
+     */
+    static final class DecompoundingSpliterator<T extends CharSequence>
+        implements Spliterator<Map.Entry<T, List<ArrayList<CharSequence>>>>
+    {
+        private static final int CHARACTERISTICS = ORDERED | SIZED | SUBSIZED | IMMUTABLE | CONCURRENT;
+
+        private final GermanCompoundSplitter splitter;
+        private final Spliterator<T> terms;
+        private SplitContext context;
+
+        DecompoundingSpliterator(GermanCompoundSplitter splitter, Spliterator<T> terms)
+        {
+            this.splitter = splitter;
+            this.terms = terms;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<T, List<ArrayList<CharSequence>>>> action)
+        {
+            if (context == null)
+            {
+                context = new SplitContext();
+            }
+            return terms.tryAdvance(term ->
+                action.accept(new AbstractMap.SimpleImmutableEntry<>(term, split(splitter, term, context))));
+        }
+
+        @Override
+        public Spliterator<Map.Entry<T, List<ArrayList<CharSequence>>>> trySplit()
+        {
+            final Spliterator<T> prefix = terms.trySplit();
+            return prefix == null ? null : new DecompoundingSpliterator<>(splitter, prefix);
+        }
+
+        @Override
+        public long estimateSize()
+        {
+            return terms.estimateSize();
+        }
+
+        @Override
+        public int characteristics()
+        {
+            return (terms.characteristics() & CHARACTERISTICS) | NONNULL;
+        }
+    }
+
+    /**
+     * A collector of the distinct terms of a stream and their decompositions, in encounter
+     * order.
+     */
+    static Collector<CharSequence, ?, Map<String, List<ArrayList<CharSequence>>>> collector(
+        GermanCompoundSplitter splitter)
+    {
+        return Collector.of(() -> new Accumulator(splitter), Accumulator::add, Accumulator::merge,
+            accumulator -> accumulator.decompositions);
+    }
+
+    /**
+     * Mutable collector container, one per thread of a parallel stream.
+     */
+    private static final class Accumulator
+    {
+        private final GermanCompoundSplitter splitter;
+        private final SplitContext context = new SplitContext();
+        private final Map<String, List<ArrayList<CharSequence>>> decompositions = new LinkedHashMap<>();
+
+        Accumulator(GermanCompoundSplitter splitter)
+        {
+            this.splitter = splitter;
+        }
+
+        void add(CharSequence term)
+        {
+            final String key = term.toString();
+            if (!decompositions.containsKey(key))
+            {
+                decompositions.put(key, split(splitter, key, context));
+            }
+        }
+
+        Accumulator merge(Accumulator other)
+        {
+            for (Map.Entry<String, List<ArrayList<CharSequence>>> entry : other.decompositions.entrySet())
+            {
+                decompositions.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+            return this;
+        }
+    }
+}
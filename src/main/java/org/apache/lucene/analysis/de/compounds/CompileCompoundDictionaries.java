@@ -1,51 +1,286 @@
 package org.apache.lucene.analysis.de.compounds;
 
 import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
-import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.IOUtils;
 import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.OfflineSorter;
 import org.apache.lucene.util.fst.FSTCompiler;
 import org.apache.lucene.util.fst.FST;
-import org.apache.lucene.util.fst.FST.INPUT_TYPE;
-import org.apache.lucene.util.fst.NoOutputs;
+import org.apache.lucene.util.fst.Outputs;
 
 
 /**
- * Compile an FSA from an UTF-8 text file (must be properly sorted).
+ * Compile a dictionary file from UTF-8 text files (one word per line, the first column is used).
+ *
+ * Words are stored reversed and merged with the glue morphemes, in the
+ * {@link CompoundDictionary.Format#MERGED} format.  Memory
+ * use is bounded by the sort buffer, not by the size of the inputs: every input file is parsed
+ * (in parallel) into a temporary file of reversed words and prefilter head grams, which is sorted
+ * externally with lucene's {@link OfflineSorter}.  The sorted files are merged, and the distinct
+ * words are streamed into the FST compiler.
+ *
+ * With <code>--frequencies</code> (a file of words and their counts, one per line) the dictionary
+ * is weighted: every word gets its log count, quantized to at most
+ * {@link CompoundDictionary#MAX_WEIGHT}, as FST output.  The frequencies are held in memory.
+ *
+ * With <code>--precompute n</code> the decompositions of the n most frequent words (of
+ * <code>--precompute-words</code>, by default of <code>--frequencies</code>) are computed with the
+ * compiled dictionary and stored with it as a {@link DecompositionTable}.
+ *
+ * With <code>--prefixes</code> (a file of compound prefixes, one per line) the prefixes are
+ * compiled into their own automaton and stored with the dictionary, see {@link CompoundPrefixes}.
  */
 public class CompileCompoundDictionaries
 {
+    /**
+     * Default output, the dictionary bundled with the jar.
+     */
+    static final String DEFAULT_OUTPUT = "src/main/resources/" + GermanCompoundSplitter.DICTIONARY_FILE;
+
+    private static final String USAGE = "Args: [--output words.dict] [--frequencies counts.txt] "
+        + "[--precompute n] [--precompute-words counts.txt] [--prefixes prefixes.txt] [--threads n] "
+        + "[--ram mb] [--temp dir] "
+        + "input1.txt input2.txt ...";
+
     public static void main(String [] args) throws Exception
     {
         if (args.length < 1)
         {
             System.out.println("No arguments provided! Please provide input file(s) as arguments");
-            System.out.println("Args: input1.txt input2.txt ...");
+            System.out.println(USAGE);
             System.exit(-1);
         }
         String clsName =  CompileCompoundDictionaries.class.getSimpleName();
         System.out.println(String.format("%s arguments: %s", clsName, Arrays.toString(args)));
 
-        final HashSet<BytesRef> words = new HashSet<BytesRef>();
+        String output = DEFAULT_OUTPUT;
+        String frequenciesFile = null;
+        String precomputeFile = null;
+        String prefixesFile = null;
+        int precompute = 0;
+        String tempDir = System.getProperty("java.io.tmpdir");
+        int threads = 0;
+        OfflineSorter.BufferSize ramBuffer = OfflineSorter.BufferSize.automatic();
+        List<Path> inputs = new ArrayList<>();
         for (int i = 0; i < args.length; i++)
         {
-            int count = 0;
-            BufferedReader reader = new BufferedReader(new InputStreamReader(
-                new FileInputStream(args[i]), "UTF-8"));
+            if (args[i].startsWith("--") && i + 1 == args.length)
+                throw new IllegalArgumentException("Missing value of " + args[i] + ". " + USAGE);
+            if (args[i].equals("--output"))
+                output = args[++i];
+            else if (args[i].equals("--frequencies"))
+                frequenciesFile = args[++i];
+            else if (args[i].equals("--precompute"))
+                precompute = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--precompute-words"))
+                precomputeFile = args[++i];
+            else if (args[i].equals("--prefixes"))
+                prefixesFile = args[++i];
+            else if (args[i].equals("--threads"))
+                threads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--ram"))
+                ramBuffer = OfflineSorter.BufferSize.megabytes(Long.parseLong(args[++i]));
+            else if (args[i].equals("--temp"))
+                tempDir = args[++i];
+            else
+                inputs.add(Paths.get(args[i]));
+        }
+        if (threads <= 0)
+            threads = Math.min(inputs.size(), Runtime.getRuntime().availableProcessors());
+        if (precomputeFile == null)
+            precomputeFile = frequenciesFile;
+        if (precompute > 0 && precomputeFile == null)
+            throw new IllegalArgumentException("--precompute needs a frequency list. " + USAGE);
+
+        final long start = System.nanoTime();
+        final Stats stats = new Stats();
+        final CompoundPrefilter.Builder prefilter = new CompoundPrefilter.Builder(
+            CompoundPrefilter.DEFAULT_GRAM_LENGTH, CompoundPrefilter.DEFAULT_BITS_PER_KEY);
+        final Weights weights = frequenciesFile == null ? null : readFrequencies(Paths.get(frequenciesFile));
+
+        final FST<Object> fst;
+        final Path temp = Files.createTempDirectory(Paths.get(tempDir), clsName);
+        try (Directory directory = FSDirectory.open(temp))
+        {
+            List<String> sorted = sortInputs(directory, inputs, ramBuffer, threads, clsName);
+            sorted.add(writeGlueMorphemes(directory, CompoundDictionary.DEFAULT_GLUE_MORPHEMES));
+            fst = compile(directory, sorted, prefilter, weights, stats);
+        }
+        finally
+        {
+            IOUtils.rm(temp);
+        }
+
+        final CompoundPrefilter filter = prefilter.build();
+        final int normalizer = weights == null ? 0 : weights.normalizer(stats.words);
+        final CompoundPrefixes prefixes = prefixesFile == null ? null
+            : CompoundPrefixes.build(readPrefixes(Paths.get(prefixesFile)));
+        final DecompositionTable table = precompute <= 0 ? null : precompute(
+            CompoundDictionary.create(output, fst, CompoundDictionary.Format.MERGED, normalizer, filter, prefixes),
+            topWords(precomputeFile.equals(frequenciesFile) ? weights : readFrequencies(Paths.get(precomputeFile)),
+                precompute));
+        CompoundDictionary.write(fst, CompoundDictionary.Format.MERGED, normalizer, filter, table,
+            prefixes, Paths.get(output));
+
+        System.out.println(String.format("%s output: %s, entries: %d, nodes: %d, arcs: %d, "
+            + "bytes: %d, build time: %d ms, peak heap: %d MB", clsName, output, stats.entries,
+            stats.nodes, stats.arcs, stats.bytes, (System.nanoTime() - start) / 1000000,
+            peakHeapUsed() >> 20));
+        System.out.println(String.format("%s prefilter: %s", clsName, filter));
+        if (weights != null)
+        {
+            System.out.println(String.format("%s weights: %d of %d words weighted, normalizer: %d",
+                clsName, stats.weighted, stats.words, normalizer));
+        }
+        if (table != null)
+        {
+            System.out.println(String.format("%s precomputed: %s", clsName, table));
+        }
+        if (prefixes != null)
+        {
+            System.out.println(String.format("%s prefixes: %s", clsName, prefixes));
+        }
+    }
+
+    /**
+     * Read compound prefixes: the first column of every line, blank lines and comments (starting
+     * with <code>#</code>) are skipped.
+     */
+    static List<String> readPrefixes(Path file) throws IOException
+    {
+        List<String> prefixes = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8))
+        {
+            final String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#"))
+                continue;
+            prefixes.add(trimmed.split("\\s+", 2)[0]);
+        }
+        return prefixes;
+    }
+
+    /**
+     * The n most frequent words, most frequent first.
+     */
+    private static List<String> topWords(Weights frequencies, int n)
+    {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(frequencies.counts.entrySet());
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed()
+            .thenComparing(Map.Entry.comparingByKey()));
+        List<String> words = new ArrayList<>(Math.min(n, entries.size()));
+        for (int i = 0; i < entries.size() && i < n; i++)
+        {
+            words.add(entries.get(i).getKey());
+        }
+        return words;
+    }
+
+    /**
+     * Decompose words with the compiled dictionary and the default limits.  Words that hit a
+     * limit are left out, and so are words the prefilter rejects, which are not looked up.
+     */
+    private static DecompositionTable precompute(CompoundDictionary dictionary, List<String> words)
+        throws IOException
+    {
+        final GermanCompoundSplitter splitter = new GermanCompoundSplitter(dictionary);
+        final CompoundPrefilter prefilter = dictionary.getPrefilter();
+        final SplitContext context = new SplitContext();
+        final DecompositionTable.Builder table = new DecompositionTable.Builder();
+        for (String word : words)
+        {
+            final char [] chars = word.toCharArray();
+            if (prefilter != null && !prefilter.mayDecompose(chars, 0, chars.length))
+                continue;
+            splitter.split(chars, 0, chars.length, context);
+            if (!context.truncated())
+                table.add(word, context);
+        }
+        return table.size() == 0 ? null : table.build();
+    }
+
+    /**
+     * Parse every input into a temporary file of entries and sort it, one input per task.
+     *
+     * @return The names of the sorted files.
+     */
+    private static List<String> sortInputs(Directory directory, List<Path> inputs,
+        OfflineSorter.BufferSize ramBuffer, int threads, String clsName) throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try
+        {
+            List<Future<String>> futures = new ArrayList<>(inputs.size());
+            for (Path input : inputs)
+            {
+                futures.add(executor.submit(() -> {
+                    String unsorted = parse(directory, input, clsName);
+                    OfflineSorter sorter = new OfflineSorter(directory, "sorted",
+                        OfflineSorter.DEFAULT_COMPARATOR, ramBuffer, OfflineSorter.MAX_TEMPFILES, -1, null, 0);
+                    String sorted = sorter.sort(unsorted);
+                    directory.deleteFile(unsorted);
+                    return sorted;
+                }));
+            }
+            List<String> sorted = new ArrayList<>(futures.size());
+            for (Future<String> future : futures)
+            {
+                sorted.add(future.get());
+            }
+            return sorted;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
 
-            Pattern pattern = Pattern.compile("\\s+");
-            String line, last = null;
-            StringBuilder buffer = new StringBuilder();
-            System.out.println(String.format("%s iterating file: %s",  clsName, args[i]));
+    /**
+     * Write the words of an input file to a temporary file, reversed for matching from the end of
+     * a term.  The head gram of each word is written too, marked with a trailing
+     * {@link GermanCompoundSplitter#LTR_SYMBOL}, so words sharing a head gram are merged by the sort.
+     *
+     * @return The name of the temporary file.
+     */
+    private static String parse(Directory directory, Path input, String clsName) throws IOException
+    {
+        int count = 0;
+        Pattern pattern = Pattern.compile("\\s+");
+        String line, last = null;
+        StringBuilder buffer = new StringBuilder();
+        BytesRefBuilder bytes = new BytesRefBuilder();
+        System.out.println(String.format("%s iterating file: %s",  clsName, input));
+
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+             IndexOutput out = directory.createTempOutput("words", "unsorted", IOContext.DEFAULT))
+        {
+            OfflineSorter.ByteSequencesWriter writer = new OfflineSorter.ByteSequencesWriter(out);
             while ((line = reader.readLine()) != null)
             {
                 // ignore comments
@@ -55,62 +290,269 @@ public class CompileCompoundDictionaries
                 line = pattern.split(line)[0].trim();
                 line = line.toLowerCase();
 
-                if (line.equals(last)) continue;
+                if (line.isEmpty() || line.equals(last)) continue;
                 last = line;
 
-                /*
-                 * Add the word to the hash set in left-to-right characters order and reversed
-                 * for easier matching later on.
-                 */
-
+                final int grams = Math.min(CompoundPrefilter.DEFAULT_GRAM_LENGTH,
+                    line.codePointCount(0, line.length()));
                 buffer.setLength(0);
-                buffer.append(line);
-                final int len = buffer.length();
-
+                buffer.append(line, 0, line.offsetByCodePoints(0, grams));
                 buffer.append(GermanCompoundSplitter.LTR_SYMBOL);
-                words.add(new BytesRef(buffer));
+                bytes.copyChars(buffer);
+                writer.write(bytes.get());
 
-                buffer.setLength(len);
-                buffer.reverse().append(GermanCompoundSplitter.RTL_SYMBOL);
-                words.add(new BytesRef(buffer));
+                buffer.setLength(0);
+                buffer.append(line).reverse();
+                bytes.copyChars(buffer);
+                writer.write(bytes.get());
                 if ((++count % 100000) == 0) System.out.println("Line: " + count);
             }
-            reader.close();
+            CodecUtil.writeFooter(out);
 
-            System.out.println(String.format("%s, words: %d", args[i], count));
+            System.out.println(String.format("%s, words: %d", input, count));
+            return out.getName();
         }
+    }
 
-        final BytesRef [] all = new BytesRef [words.size()];
-        words.toArray(all);
+    /**
+     * Read word counts: the first column is the word, the second its count.
+     */
+    private static Weights readFrequencies(Path file) throws IOException
+    {
+        Pattern pattern = Pattern.compile("\\s+");
+        Weights weights = new Weights();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+        {
+            for (String line; (line = reader.readLine()) != null;)
+            {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String [] columns = pattern.split(line);
+                if (columns.length < 2)
+                    throw new IllegalArgumentException("Missing count in " + file + ": " + line);
+                weights.add(columns[0].toLowerCase(), Long.parseLong(columns[1]));
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Write the reversed glue morphemes, followed by {@link GermanCompoundSplitter#GLUE_SYMBOL},
+     * to a sorted temporary file.
+     *
+     * @return The name of the temporary file.
+     */
+    private static String writeGlueMorphemes(Directory directory, String [] glueMorphemes) throws IOException
+    {
+        List<BytesRef> entries = new ArrayList<>(glueMorphemes.length);
+        for (String morpheme : glueMorphemes)
+        {
+            entries.add(new BytesRef(new StringBuilder(morpheme).reverse()
+                .append(GermanCompoundSplitter.GLUE_SYMBOL)));
+        }
+        Collections.sort(entries);
 
-        // These lines were modified for 6.x api changes...
-        // removed in https://issues.apache.org/jira/browse/LUCENE-7053
-        // ""This patch also removes the BytesRef-Comparator completely and just 
-        // implements compareTo. So all code can rely on natural ordering.""
-        // Arrays.sort(all, BytesRef.getUTF8SortedAsUnicodeComparator());
-        Arrays.sort(all); // rely on natural ordering
-        serialize("src/main/resources/words.fst", all);
+        try (IndexOutput out = directory.createTempOutput("glue", "sorted", IOContext.DEFAULT))
+        {
+            OfflineSorter.ByteSequencesWriter writer = new OfflineSorter.ByteSequencesWriter(out);
+            for (BytesRef entry : entries)
+            {
+                writer.write(entry);
+            }
+            CodecUtil.writeFooter(out);
+            return out.getName();
+        }
     }
 
-    private static void serialize(String file, BytesRef [] all) throws IOException
+    /**
+     * Merge the sorted files and compile their distinct words and glue morphemes into an FST,
+     * adding the head grams and the tail grams of the words to the prefilter.
+     */
+    private static FST<Object> compile(Directory directory, List<String> sorted,
+        CompoundPrefilter.Builder prefilter, Weights weights, Stats stats) throws IOException
     {
-        final Object nothing = NoOutputs.getSingleton().getNoOutput();
+        final Outputs<Object> outputs = CompoundDictionary.outputs(weights != null);
+        final Object nothing = outputs.getNoOutput();
         FSTCompiler.Builder<Object> builder = new FSTCompiler.Builder<>(
             FST.INPUT_TYPE.BYTE4,
-            NoOutputs.getSingleton()
+            outputs
         );
         FSTCompiler<Object> compiler = builder.build();
         final IntsRefBuilder intsRef = new IntsRefBuilder();
-        for (BytesRef br : all)
+        final BytesRefBuilder last = new BytesRefBuilder();
+        final StringBuilder word = new StringBuilder();
+
+        PriorityQueue<SortedInput> queue = new PriorityQueue<>(Math.max(1, sorted.size()));
+        try
         {
-            intsRef.clear();
-            intsRef.copyUTF8Bytes(br);
-            compiler.add(intsRef.get(), nothing);
+            for (String name : sorted)
+            {
+                SortedInput input = new SortedInput(directory, name);
+                if (input.next())
+                    queue.add(input);
+                else
+                    input.close();
+            }
+
+            // entries arrive in (unicode) order, duplicates are adjacent.
+            while (!queue.isEmpty())
+            {
+                SortedInput input = queue.poll();
+                if (last.length() == 0 || !last.get().equals(input.current))
+                {
+                    last.copyBytes(input.current);
+                    intsRef.clear();
+                    intsRef.copyUTF8Bytes(input.current);
+
+                    // head grams are only marked, reversed words and glue morphemes go into the FST.
+                    final int length = intsRef.length() - 1;
+                    if (intsRef.intAt(length) == GermanCompoundSplitter.LTR_SYMBOL)
+                    {
+                        prefilter.addHead(intsRef.ints(), 0, length);
+                    }
+                    else if (intsRef.intAt(length) == GermanCompoundSplitter.GLUE_SYMBOL)
+                    {
+                        compiler.add(intsRef.get(), nothing);
+                        stats.entries++;
+                    }
+                    else
+                    {
+                        Object output = nothing;
+                        if (weights != null)
+                        {
+                            word.setLength(0);
+                            for (int i = intsRef.length(); --i >= 0;)
+                            {
+                                word.appendCodePoint(intsRef.intAt(i));
+                            }
+                            final int weight = weights.weight(word.toString());
+                            if (weight > 0)
+                            {
+                                output = Long.valueOf(weight);
+                                stats.weighted++;
+                            }
+                        }
+                        compiler.add(intsRef.get(), output);
+                        prefilter.addReversedTail(intsRef.ints(), 0, intsRef.length());
+                        stats.entries++;
+                        stats.words++;
+                    }
+                }
+
+                if (input.next())
+                    queue.add(input);
+                else
+                    input.close();
+            }
+        }
+        finally
+        {
+            IOUtils.close(queue);
         }
 
         FST.FSTMetadata<Object> fstMetadata = compiler.compile();
-        final FST<Object> fst = FST.fromFSTReader(fstMetadata, compiler.getFSTReader());
+        stats.nodes = compiler.getNodeCount();
+        stats.arcs = compiler.getArcCount();
+        stats.bytes = compiler.fstSizeInBytes();
+        return FST.fromFSTReader(fstMetadata, compiler.getFSTReader());
+    }
+
+    /**
+     * Peak heap usage of this JVM, summed over all heap memory pools.
+     */
+    private static long peakHeapUsed()
+    {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
 
-        fst.save(Paths.get(file));
+    /**
+     * Word counts and their quantization to weights.
+     */
+    private static final class Weights
+    {
+        final Map<String, Long> counts = new HashMap<>();
+        long total;
+        long max;
+
+        void add(String word, long count)
+        {
+            if (count < 0)
+                throw new IllegalArgumentException("Negative count of " + word + ": " + count);
+            max = Math.max(max, counts.merge(word, count, Long::sum));
+            total += count;
+        }
+
+        /**
+         * Log count of a word, scaled so that the most frequent word weighs
+         * {@link CompoundDictionary#MAX_WEIGHT}.
+         */
+        int weight(String word)
+        {
+            final Long count = counts.get(word);
+            return count == null ? 0 : quantize(count + 1);
+        }
+
+        /**
+         * Log of the total count, add-one smoothed over all words of the dictionary.
+         */
+        int normalizer(long words)
+        {
+            return Math.max(CompoundDictionary.MAX_WEIGHT + 1, quantize(total + words));
+        }
+
+        private int quantize(long count)
+        {
+            return (int) Math.round(CompoundDictionary.MAX_WEIGHT * Math.log(count) / Math.log(max + 1));
+        }
+    }
+
+    private static final class Stats
+    {
+        long entries;
+        long words;
+        long weighted;
+        long nodes;
+        long arcs;
+        long bytes;
+    }
+
+    /**
+     * A sorted temporary file positioned on its current entry, ordered by that entry.
+     */
+    private static final class SortedInput implements Comparable<SortedInput>, java.io.Closeable
+    {
+        final OfflineSorter.ByteSequencesReader reader;
+        BytesRef current;
+
+        SortedInput(Directory directory, String name) throws IOException
+        {
+            reader = new OfflineSorter.ByteSequencesReader(
+                directory.openChecksumInput(name, IOContext.READONCE), name);
+        }
+
+        boolean next() throws IOException
+        {
+            current = reader.next();
+            return current != null;
+        }
+
+        @Override
+        public int compareTo(SortedInput other)
+        {
+            return current.compareTo(other.current);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            reader.close();
+        }
     }
 }
@@ -0,0 +1,938 @@
+package org.apache.lucene.analysis.de.compounds;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.store.ByteBuffersDataInput;
+import org.apache.lucene.store.ByteBuffersIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.OutputStreamIndexOutput;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.Accountables;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.FSTCompiler;
+import org.apache.lucene.util.fst.NoOutputs;
+import org.apache.lucene.util.fst.OffHeapFSTStore;
+import org.apache.lucene.util.fst.Outputs;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+
+/**
+ * Immutable dictionary data used by {@link GermanCompoundSplitter}: the surface forms FST and the
+ * glue morphemes FST.
+ *
+ * Dictionaries are loaded once per JVM and shared.  Each dictionary is registered under the key of
+ * its source, {@link #acquire(String)} returns the registered instance (loading it on first use)
+ * and increments its reference count, {@link #close()} decrements it again.  When the count drops
+ * to zero the dictionary is removed from the registry.
+ *
+ * The bundled dictionary returned by {@link #getDefault()} is pinned and never unloaded.
+ *
+ * Dictionaries read from a stream ({@link #acquire(InputStream, String)}) are registered under the
+ * hash of their content, so identical files configured in many places share one instance.  A
+ * dictionary can be combined with other glue morphemes ({@link #withGlueMorphemes(String...)}) and
+ * compound prefixes ({@link #withPrefixes(String...)}), variants share the dictionary data and are
+ * deduplicated by the hash of their morphemes and prefixes.
+ *
+ * A dictionary file can be reloaded at runtime with {@link #reload(Path)}: the new version
+ * replaces the registered one, holders of the previous version keep using it until they release
+ * it.  Use {@link ReloadableSplitter} to swap versions under live token filters.
+ *
+ * Dictionary files are written by
+ * {@link #write(FST, Format, int, CompoundPrefilter, DecompositionTable, CompoundPrefixes, Path)}: a versioned codec
+ * header, the {@link Format} of the FST, the word weight normalizer, the FST, an
+ * optional {@link CompoundPrefilter}, an optional {@link DecompositionTable}, optional
+ * {@link CompoundPrefixes} and a checksum footer
+ * which is verified when the file is opened.
+ *
+ * Dictionaries compiled with word frequencies are weighted: every word carries a quantized log
+ * frequency as its FST output ({@link PositiveIntOutputs}), see {@link #getWordCost(long)}.
+ * Weights are below {@value #MAX_WEIGHT}, so FST outputs are cached {@link Long} instances and
+ * reading them never allocates.
+ * Dictionaries acquired from a file path with {@link #acquire(Path)} are memory mapped, the FST
+ * bytes stay off-heap in the page cache and are shared by all processes on a host.  Classpath
+ * resources are loaded onto the heap, they may also be a bare FST in the legacy
+ * {@link Format#BIDIRECTIONAL} format.
+ */
+public final class CompoundDictionary implements Accountable, Closeable
+{
+    private static final long BASE_RAM_BYTES_USED =
+        RamUsageEstimator.shallowSizeOfInstance(CompoundDictionary.class);
+
+    /**
+     * Prefix of registry keys for dictionaries loaded from the classpath.
+     */
+    static final String CLASSPATH_PREFIX = "classpath:";
+
+    /**
+     * Prefix of registry keys for dictionaries memory mapped from the file system.
+     */
+    static final String FILE_PREFIX = "file:";
+
+    /**
+     * Prefix of registry keys for dictionaries read from a stream, followed by the content hash.
+     */
+    static final String CONTENT_PREFIX = "sha256:";
+
+    /**
+     * Codec name written to the header of dictionary files.
+     */
+    static final String CODEC_NAME = "GermanCompoundDictionary";
+    static final int VERSION_START = 0;
+    static final int VERSION_PREFILTER = 1;
+    static final int VERSION_FORMAT = 2;
+    static final int VERSION_MERGED = 3;
+    static final int VERSION_WEIGHTS = 4;
+    static final int VERSION_TABLE = 5;
+    static final int VERSION_PREFIXES = 6;
+    static final int VERSION_CURRENT = VERSION_PREFIXES;
+
+    /**
+     * Largest word weight.
+     */
+    public static final int MAX_WEIGHT = 127;
+
+    /**
+     * How words are stored in the surface forms FST.
+     */
+    public enum Format
+    {
+        /**
+         * Every word twice: left-to-right followed by {@link GermanCompoundSplitter#LTR_SYMBOL}
+         * and reversed followed by {@link GermanCompoundSplitter#RTL_SYMBOL}.  Word ends are
+         * found by looking up the symbol arc (legacy <code>words.fst</code> and dictionary files
+         * before {@link #VERSION_FORMAT}).
+         */
+        BIDIRECTIONAL,
+
+        /**
+         * Reversed words only, word ends are final states.
+         */
+        REVERSED,
+
+        /**
+         * Reversed words like {@link #REVERSED}, merged with the reversed
+         * {@link CompoundDictionary#DEFAULT_GLUE_MORPHEMES glue morphemes}, each followed by
+         * {@link GermanCompoundSplitter#GLUE_SYMBOL}.  Words and glue morphemes ending at an offset
+         * are found in a single traversal.
+         */
+        MERGED
+    }
+
+    /**
+     * Default glue morphemes (in left-to-right order).
+     */
+    static final String [] DEFAULT_GLUE_MORPHEMES = {
+        "e", "es", "en", "er", "n", "ens", "ns", "s"
+    };
+
+    /**
+     * Length of the longest glue morpheme, in code points.
+     */
+    static final int MAX_GLUE_LENGTH = Arrays.stream(DEFAULT_GLUE_MORPHEMES)
+        .mapToInt(morpheme -> morpheme.codePointCount(0, morpheme.length())).max().getAsInt();
+
+    /**
+     * All loaded dictionaries by source key, guarded by its own monitor.
+     */
+    private static final Map<String, CompoundDictionary> REGISTRY = new HashMap<>();
+
+    /**
+     * Lazy holder for the pinned, bundled dictionary.
+     */
+    private static final class DefaultHolder
+    {
+        static final CompoundDictionary INSTANCE = acquire(GermanCompoundSplitter.DICTIONARY_FILE);
+    }
+
+    private final String source;
+
+    /**
+     * A static FSA with inflected and base surface forms from Morphy.
+     *
+     * @see "http://www.wolfganglezius.de/doku.php?id=cl:surfaceForms"
+     */
+    private final FST<Object> surfaceForms;
+
+    /**
+     * How words are stored in {@link #surfaceForms}.
+     */
+    private final Format format;
+
+    /**
+     * Quantized log of the total frequency of all words, <code>0</code> for unweighted dictionaries.
+     */
+    private final int normalizer;
+
+    /**
+     * A static FSA with glue glueMorphemes, <code>null</code> if they are merged into
+     * {@link #surfaceForms} ({@link Format#MERGED}).
+     */
+    private final FST<Object> glueMorphemes;
+
+    /**
+     * Optional filter rejecting terms without decompositions, may be {@code null}.
+     */
+    private final CompoundPrefilter prefilter;
+
+    /**
+     * Optional precomputed decompositions of frequent words, may be {@code null}.
+     */
+    private final DecompositionTable table;
+
+    /**
+     * Optional compound prefixes detached from terms that are no words, may be {@code null}.
+     */
+    private final CompoundPrefixes prefixes;
+
+    /**
+     * Resources released together with the dictionary (the mapped input), may be {@code null}.
+     */
+    private final Closeable resources;
+
+    /**
+     * Decomposition caches by capacity, shared by all splitters using this dictionary.
+     */
+    private final Map<Long, DecompositionCache> caches = new ConcurrentHashMap<>();
+
+    /**
+     * The dictionary a variant shares its data with, <code>null</code> for loaded dictionaries.
+     */
+    private final CompoundDictionary base;
+
+    /**
+     * The glue morphemes and prefixes of a variant, <code>null</code> where it has those of its
+     * base.
+     */
+    private final String [] variantGlueMorphemes;
+    private final String [] variantPrefixes;
+
+    /**
+     * Variants with other glue morphemes or prefixes by the hash of both, guarded by
+     * {@link #REGISTRY}.
+     */
+    private final Map<String, CompoundDictionary> variants = new HashMap<>();
+
+    /**
+     * Counters of all splitters and token filters using this dictionary, carried over to the
+     * versions replacing it ({@link #reload(Path)}) before they are published.
+     */
+    private CompoundMetrics metrics;
+
+    /**
+     * Number of outstanding acquire calls, guarded by {@link #REGISTRY}.
+     */
+    private int refCount;
+
+    private CompoundDictionary(String source, FST<Object> surfaceForms, Format format,
+        int normalizer, CompoundPrefilter prefilter, DecompositionTable table, CompoundPrefixes prefixes,
+        Closeable resources) throws IOException
+    {
+        this.source = source;
+        this.surfaceForms = surfaceForms;
+        this.format = format;
+        this.normalizer = normalizer;
+        this.glueMorphemes = format == Format.MERGED ? null : createMorphemesFST(DEFAULT_GLUE_MORPHEMES);
+        this.prefilter = prefilter;
+        this.table = table;
+        this.prefixes = prefixes;
+        this.resources = resources;
+        this.metrics = new CompoundMetrics(source);
+        this.base = null;
+        this.variantGlueMorphemes = null;
+        this.variantPrefixes = null;
+    }
+
+    /**
+     * A variant of a dictionary with other glue morphemes or prefixes.  Precomputed decompositions
+     * assume those of the dictionary file, the variant has none.
+     */
+    private CompoundDictionary(CompoundDictionary base, String source, String [] glueMorphemes,
+        String [] prefixes) throws IOException
+    {
+        this.source = source;
+        this.surfaceForms = base.surfaceForms;
+        this.format = base.format;
+        this.normalizer = base.normalizer;
+        this.glueMorphemes = glueMorphemes == null ? base.glueMorphemes : createMorphemesFST(glueMorphemes);
+        this.prefilter = base.prefilter;
+        this.table = null;
+        this.prefixes = prefixes == null ? base.prefixes
+            : prefixes.length == 0 ? null : CompoundPrefixes.build(Arrays.asList(prefixes));
+        this.resources = null;
+        this.metrics = base.metrics;
+        this.base = base;
+        this.variantGlueMorphemes = glueMorphemes;
+        this.variantPrefixes = prefixes;
+    }
+
+    /**
+     * An unregistered dictionary over freshly compiled data, used to precompute decompositions.
+     */
+    static CompoundDictionary create(String source, FST<Object> surfaceForms, Format format,
+        int normalizer, CompoundPrefilter prefilter, CompoundPrefixes prefixes) throws IOException
+    {
+        return new CompoundDictionary(source, surfaceForms, format, normalizer, prefilter, null, prefixes, null);
+    }
+
+    /**
+     * Loads a dictionary for a registry key.
+     */
+    private static interface Loader
+    {
+        CompoundDictionary load(String key) throws IOException;
+    }
+
+    /**
+     * The bundled dictionary ({@value GermanCompoundSplitter#DICTIONARY_FILE}).  The returned
+     * instance is shared and must not be closed.
+     */
+    public static CompoundDictionary getDefault()
+    {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * Acquire the dictionary stored in the given classpath resource, loading it if no other
+     * caller holds it yet.  Every call must be paired with a call to {@link #close()}.
+     *
+     * @param resource Classpath resource name of a dictionary file or a legacy surface forms FST.
+     */
+    public static CompoundDictionary acquire(final String resource)
+    {
+        return acquire(CLASSPATH_PREFIX + resource, key -> readClasspathDictionary(key, resource));
+    }
+
+    /**
+     * Acquire the dictionary file at the given path, memory mapping it if no other caller holds
+     * it yet.  Every call must be paired with a call to {@link #close()}.
+     *
+     * @param path Dictionary file written by {@link #write(FST, Format, int, CompoundPrefilter, DecompositionTable, CompoundPrefixes, Path)}.
+     */
+    public static CompoundDictionary acquire(final Path path)
+    {
+        final Path file = path.toAbsolutePath().normalize();
+        return acquire(FILE_PREFIX + file, key -> openMappedDictionary(key, file));
+    }
+
+    /**
+     * Load the dictionary file at the given path again and register the new version in place of
+     * the current one.  Holders of the previous version are not affected, it stays mapped until
+     * its last reference is released.  The metrics of the previous version carry over.  Every
+     * call must be paired with a call to {@link #close()}.
+     *
+     * Dictionary files must be replaced atomically (written to a temporary file and moved over
+     * the old one), mapped versions would see a file overwritten in place.
+     *
+     * @param path Dictionary file written by {@link #write(FST, Format, int, CompoundPrefilter, DecompositionTable, CompoundPrefixes, Path)}.
+     */
+    public static CompoundDictionary reload(final Path path)
+    {
+        final Path file = path.toAbsolutePath().normalize();
+        final String key = FILE_PREFIX + file;
+        synchronized (REGISTRY)
+        {
+            final CompoundDictionary dictionary;
+            try
+            {
+                dictionary = openMappedDictionary(key, file);
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException("Failed to reload dictionary " + file, e);
+            }
+            final CompoundDictionary previous = REGISTRY.put(key, dictionary);
+            if (previous != null)
+                dictionary.metrics = previous.metrics;
+            dictionary.refCount++;
+            return dictionary;
+        }
+    }
+
+    /**
+     * Acquire the dictionary file read from the given stream, loading it onto the heap if no other
+     * caller holds a dictionary with the same content yet.  Every call must be paired with a call
+     * to {@link #close()}.
+     *
+     * @param input Dictionary file, read to the end but not closed.
+     * @param name Name of the stream, for error messages.
+     */
+    public static CompoundDictionary acquire(InputStream input, final String name) throws IOException
+    {
+        final byte [] bytes = input.readAllBytes();
+        return acquire(CONTENT_PREFIX + contentHash(bytes), key -> readDictionary(key, bytes, name));
+    }
+
+    /**
+     * Hex SHA-256 digest of the given bytes.
+     */
+    static String contentHash(byte [] bytes)
+    {
+        try
+        {
+            final StringBuilder hex = new StringBuilder(64);
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes))
+            {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // every Java platform supports SHA-256.
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static CompoundDictionary acquire(String key, Loader loader)
+    {
+        synchronized (REGISTRY)
+        {
+            CompoundDictionary dictionary = REGISTRY.get(key);
+            if (dictionary == null)
+            {
+                try
+                {
+                    dictionary = loader.load(key);
+                }
+                catch (IOException e)
+                {
+                    throw new RuntimeException("Failed to initialize FST data structures.", e);
+                }
+                REGISTRY.put(key, dictionary);
+            }
+            dictionary.refCount++;
+            return dictionary;
+        }
+    }
+
+    /**
+     * Release a dictionary obtained from {@link #acquire(String)}, {@link #acquire(Path)} or
+     * {@link #reload(Path)}.
+     * Releasing the last reference of a memory mapped dictionary unmaps it, splitters must no
+     * longer use it afterwards.
+     */
+    @Override
+    public void close()
+    {
+        if (base != null)
+        {
+            base.close();
+            return;
+        }
+        synchronized (REGISTRY)
+        {
+            if (refCount <= 0)
+            {
+                throw new IllegalStateException("Dictionary already released: " + source);
+            }
+            if (--refCount == 0)
+            {
+                // a reloaded version has taken over the registry entry and the metrics.
+                if (REGISTRY.remove(source, this))
+                    metrics.unregisterMBean();
+                try
+                {
+                    IOUtils.close(resources);
+                }
+                catch (IOException e)
+                {
+                    throw new RuntimeException("Failed to release dictionary " + source, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A variant of this dictionary gluing words with the given morphemes instead of the default
+     * ones (<code>-s-</code>, <code>-en-</code>, ...), sharing its surface forms and prefilter.
+     * Variants with the same morphemes and prefixes are shared, each has its own decomposition
+     * caches.  The variant holds a reference to this dictionary, which {@link #close()} on the
+     * variant releases.
+     *
+     * @param morphemes Glue morphemes (in left-to-right order), case is ignored.
+     */
+    public CompoundDictionary withGlueMorphemes(String... morphemes)
+    {
+        return variant(normalize(morphemes, "glue morphemes"), variantPrefixes);
+    }
+
+    /**
+     * A variant of this dictionary detaching the given compound prefixes instead of those of the
+     * dictionary file, see {@link CompoundPrefixes}.  Shared and released like
+     * {@link #withGlueMorphemes(String...)}.
+     *
+     * @param prefixes Prefixes (in left-to-right order), case is ignored.  None disables the prefix
+     *          stage.
+     */
+    public CompoundDictionary withPrefixes(String... prefixes)
+    {
+        return variant(variantGlueMorphemes,
+            prefixes.length == 0 ? prefixes : normalize(prefixes, "prefixes"));
+    }
+
+    /**
+     * Trimmed, case folded, distinct and sorted.
+     */
+    private static String [] normalize(String [] values, String what)
+    {
+        final TreeSet<String> sorted = new TreeSet<>();
+        for (String value : values)
+        {
+            final String trimmed = value.trim();
+            if (!trimmed.isEmpty())
+                sorted.add(trimmed.toLowerCase(Locale.ROOT));
+        }
+        if (sorted.isEmpty())
+        {
+            throw new IllegalArgumentException("No " + what);
+        }
+        return sorted.toArray(new String [0]);
+    }
+
+    private CompoundDictionary variant(String [] glueMorphemes, String [] prefixes)
+    {
+        if (base != null)
+        {
+            return base.variant(glueMorphemes, prefixes);
+        }
+        final String key = contentHash(("glue:" + (glueMorphemes == null ? "" : String.join("\n", glueMorphemes))
+            + "\nprefixes" + (prefixes == null ? "" : ":" + String.join("\n", prefixes))).getBytes(StandardCharsets.UTF_8));
+        synchronized (REGISTRY)
+        {
+            if (refCount <= 0)
+            {
+                throw new IllegalStateException("Dictionary already released: " + source);
+            }
+            CompoundDictionary variant = variants.get(key);
+            if (variant == null)
+            {
+                try
+                {
+                    variant = new CompoundDictionary(this, source + "#" + key.substring(0, 16),
+                        glueMorphemes, prefixes);
+                }
+                catch (IOException e)
+                {
+                    throw new RuntimeException("Failed to build the variant FSTs.", e);
+                }
+                variants.put(key, variant);
+            }
+            refCount++;
+            return variant;
+        }
+    }
+
+    /**
+     * Registry key of this dictionary.
+     */
+    public String getSource()
+    {
+        return source;
+    }
+
+    /**
+     * Get the decomposition cache with the given capacity for this dictionary.  Decompositions
+     * only depend on the dictionary, so every splitter configured with the same capacity shares
+     * one cache.  Results cut short by the {@link SplitLimits} of a splitter are not cached.
+     *
+     * @param maxWeight Capacity in characters, see {@link DecompositionCache}.
+     */
+    public DecompositionCache getCache(long maxWeight)
+    {
+        return caches.computeIfAbsent(maxWeight, DecompositionCache::new);
+    }
+
+    /**
+     * Counters and split latencies of all splitters and token filters using this dictionary.
+     */
+    public CompoundMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * The surface forms FST, for example to write it again with another prefilter, see
+     * {@link #write(FST, Format, int, CompoundPrefilter, Path)}.
+     */
+    public FST<Object> getSurfaceForms()
+    {
+        return surfaceForms;
+    }
+
+    /**
+     * How words are stored in the surface forms FST.
+     */
+    public Format getFormat()
+    {
+        return format;
+    }
+
+    /**
+     * Whether the surface forms FST has word weights as outputs.
+     */
+    public boolean isWeighted()
+    {
+        return normalizer > 0;
+    }
+
+    /**
+     * The cost of a word with the given weight (its FST output): the negative log of its relative
+     * frequency, quantized like the weights.  Every word of an unweighted dictionary costs
+     * <code>1</code>.
+     */
+    public long getWordCost(long weight)
+    {
+        return normalizer > 0 ? normalizer - weight : 1;
+    }
+
+    /**
+     * Quantized log of the total word frequency, <code>0</code> if the dictionary is unweighted.
+     */
+    public int getNormalizer()
+    {
+        return normalizer;
+    }
+
+    /**
+     * Separate glue morphemes FST, <code>null</code> for {@link Format#MERGED} dictionaries.
+     */
+    FST<Object> getGlueMorphemes()
+    {
+        return glueMorphemes;
+    }
+
+    /**
+     * The prefilter of this dictionary, or <code>null</code> if it has none.
+     */
+    public CompoundPrefilter getPrefilter()
+    {
+        return prefilter;
+    }
+
+    /**
+     * The precomputed decompositions of this dictionary, or <code>null</code> if it has none.
+     */
+    public DecompositionTable getDecompositionTable()
+    {
+        return table;
+    }
+
+    /**
+     * The compound prefixes of this dictionary, or <code>null</code> if it has none.
+     */
+    public CompoundPrefixes getPrefixes()
+    {
+        return prefixes;
+    }
+
+    @Override
+    public long ramBytesUsed()
+    {
+        return BASE_RAM_BYTES_USED + surfaceForms.ramBytesUsed()
+            + (glueMorphemes == null ? 0 : glueMorphemes.ramBytesUsed())
+            + (prefilter == null ? 0 : prefilter.ramBytesUsed())
+            + (table == null ? 0 : table.ramBytesUsed())
+            + (prefixes == null ? 0 : prefixes.ramBytesUsed());
+    }
+
+    @Override
+    public Collection<Accountable> getChildResources()
+    {
+        List<Accountable> resources = new ArrayList<>(5);
+        resources.add(Accountables.namedAccountable("surfaceForms", surfaceForms));
+        if (glueMorphemes != null)
+            resources.add(Accountables.namedAccountable("glueMorphemes", glueMorphemes));
+        if (prefilter != null)
+            resources.add(Accountables.namedAccountable("prefilter", prefilter));
+        if (table != null)
+            resources.add(Accountables.namedAccountable("decompositionTable", table));
+        if (prefixes != null)
+            resources.add(Accountables.namedAccountable("prefixes", prefixes));
+        return resources;
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + "(" + source + ")";
+    }
+
+    /**
+     * Load a dictionary from the classpath.
+     */
+    private static CompoundDictionary readClasspathDictionary(String key, String resource) throws IOException
+    {
+        byte [] bytes;
+        try (InputStream inputStream = CompoundDictionary.class.getClassLoader().getResourceAsStream(resource))
+        {
+            if (inputStream == null) {
+                throw new IOException("Ressource " + resource + " nicht gefunden");
+            }
+            bytes = inputStream.readAllBytes();
+        }
+        return readDictionary(key, bytes, resource);
+    }
+
+    /**
+     * Read a dictionary onto the heap: a dictionary file, or a bare surface forms FST in the
+     * legacy format.
+     */
+    private static CompoundDictionary readDictionary(String key, byte [] bytes, String name) throws IOException
+    {
+        try (IndexInput input = new ByteBuffersIndexInput(
+            new ByteBuffersDataInput(List.of(ByteBuffer.wrap(bytes))), name))
+        {
+            // both start with a codec header, a bare FST has its own codec name.
+            input.readInt();
+            final boolean legacy = !CODEC_NAME.equals(input.readString());
+            input.seek(0);
+            if (legacy)
+            {
+                Outputs<Object> outputs = NoOutputs.getSingleton();
+                FST.FSTMetadata<Object> metadata = FST.readMetadata(input, outputs);
+                return new CompoundDictionary(key, new FST<>(metadata, input), Format.BIDIRECTIONAL,
+                    0, null, null, null, null);
+            }
+            return readDictionary(key, input, false, null);
+        }
+    }
+
+    /**
+     * Open a dictionary file: map it and read it with the FST bytes left off-heap.
+     */
+    private static CompoundDictionary openMappedDictionary(String key, Path file) throws IOException
+    {
+        Directory directory = new MMapDirectory(file.getParent());
+        IndexInput input = null;
+        boolean success = false;
+        try
+        {
+            input = directory.openInput(file.getFileName().toString(), IOContext.RANDOM);
+            final IndexInput mapped = input;
+            CompoundDictionary dictionary = readDictionary(key, input, true,
+                () -> IOUtils.close(mapped, directory));
+            success = true;
+            return dictionary;
+        }
+        finally
+        {
+            if (!success)
+            {
+                IOUtils.closeWhileHandlingException(input, directory);
+            }
+        }
+    }
+
+    /**
+     * Read a dictionary file: verify its checksum and header, then read the format, the FST, the
+     * prefilter, the decomposition table and the prefixes.
+     *
+     * @param offHeap Whether the FST bytes are read from the input on demand instead of copied
+     *          onto the heap, the input must then stay open until <code>resources</code> are closed.
+     */
+    private static CompoundDictionary readDictionary(String key, IndexInput input, boolean offHeap,
+        Closeable resources) throws IOException
+    {
+        CodecUtil.checksumEntireFile(input);
+        final int version = CodecUtil.checkHeader(input, CODEC_NAME, VERSION_START, VERSION_CURRENT);
+
+        Format format = Format.BIDIRECTIONAL;
+        if (version >= VERSION_FORMAT)
+        {
+            final int ordinal = input.readByte();
+            if (ordinal < 0 || ordinal >= Format.values().length)
+            {
+                throw new CorruptIndexException("Unknown dictionary format: " + ordinal, input);
+            }
+            format = Format.values()[ordinal];
+        }
+        final int normalizer = version >= VERSION_WEIGHTS ? input.readVInt() : 0;
+
+        Outputs<Object> outputs = outputs(normalizer > 0);
+        FST.FSTMetadata<Object> metadata = FST.readMetadata(input, outputs);
+        FST<Object> surfaceForms;
+        if (offHeap)
+        {
+            final long fstStart = input.getFilePointer();
+            OffHeapFSTStore store = new OffHeapFSTStore();
+            surfaceForms = new FST<>(metadata, input, store);
+            // the off-heap store only references the FST bytes, skip them.
+            input.seek(fstStart + store.size());
+        }
+        else
+        {
+            surfaceForms = new FST<>(metadata, input);
+        }
+
+        CompoundPrefilter prefilter = null;
+        if (version >= VERSION_PREFILTER && input.readByte() != 0)
+        {
+            prefilter = CompoundPrefilter.read(input);
+        }
+
+        // the table is small, it is always read onto the heap.
+        DecompositionTable table = null;
+        if (version >= VERSION_TABLE && input.readByte() != 0)
+        {
+            table = DecompositionTable.read(input);
+        }
+
+        CompoundPrefixes prefixes = null;
+        if (version >= VERSION_PREFIXES && input.readByte() != 0)
+        {
+            prefixes = CompoundPrefixes.read(input);
+        }
+
+        return new CompoundDictionary(key, surfaceForms, format, normalizer, prefilter, table, prefixes,
+            resources);
+    }
+
+    /**
+     * Outputs of surface forms FSTs: word weights or none.
+     */
+    @SuppressWarnings("unchecked")
+    static Outputs<Object> outputs(boolean weighted)
+    {
+        return weighted
+            ? (Outputs<Object>) (Outputs<?>) PositiveIntOutputs.getSingleton()
+            : NoOutputs.getSingleton();
+    }
+
+    /**
+     * Write this dictionary as a dictionary file, see
+     * {@link #write(FST, Format, int, CompoundPrefilter, DecompositionTable, CompoundPrefixes, Path)}.
+     */
+    public void write(Path file) throws IOException
+    {
+        write(surfaceForms, format, normalizer, prefilter, table, prefixes, file);
+    }
+
+    /**
+     * Write an unweighted surface forms FST and its prefilter as a dictionary file, see
+     * {@link #write(FST, Format, int, CompoundPrefilter, Path)}.
+     */
+    public static void write(FST<Object> surfaceForms, Format format, CompoundPrefilter prefilter,
+        Path file) throws IOException
+    {
+        write(surfaceForms, format, 0, prefilter, file);
+    }
+
+    /**
+     * Write a surface forms FST and its prefilter as a dictionary file without precomputed
+     * decompositions, see {@link #write(FST, Format, int, CompoundPrefilter, DecompositionTable, CompoundPrefixes, Path)}.
+     */
+    public static void write(FST<Object> surfaceForms, Format format, int normalizer,
+        CompoundPrefilter prefilter, Path file) throws IOException
+    {
+        write(surfaceForms, format, normalizer, prefilter, null, file);
+    }
+
+    /**
+     * Write a surface forms FST, its prefilter and decomposition table as a dictionary file without
+     * prefixes, see {@link #write(FST, Format, int, CompoundPrefilter, DecompositionTable, CompoundPrefixes, Path)}.
+     */
+    public static void write(FST<Object> surfaceForms, Format format, int normalizer,
+        CompoundPrefilter prefilter, DecompositionTable table, Path file) throws IOException
+    {
+        write(surfaceForms, format, normalizer, prefilter, table, null, file);
+    }
+
+    /**
+     * Write a surface forms FST, its prefilter, decomposition table and prefixes as a dictionary
+     * file that can be memory mapped with {@link #acquire(Path)} or bundled as a classpath
+     * resource.
+     *
+     * @param surfaceForms Surface forms FST, as compiled by {@link CompileCompoundDictionaries}.
+     * @param format How words are stored in the FST.
+     * @param normalizer Quantized log of the total word frequency if the FST has word weights as
+     *          outputs ({@link #outputs(boolean)}), <code>0</code> if it has no outputs.
+     * @param prefilter Prefilter built from the same words, may be <code>null</code>.
+     * @param table Decompositions precomputed with the same FST and prefixes, may be
+     *          <code>null</code>.
+     * @param prefixes Compound prefixes, may be <code>null</code>.
+     * @param file Output file, overwritten if it exists.
+     */
+    public static void write(FST<Object> surfaceForms, Format format, int normalizer,
+        CompoundPrefilter prefilter, DecompositionTable table, CompoundPrefixes prefixes, Path file)
+        throws IOException
+    {
+        if (normalizer < 0 || (normalizer > 0) != (surfaceForms.outputs == outputs(true)))
+        {
+            throw new IllegalArgumentException("Weighted dictionaries need a positive normalizer");
+        }
+        try (OutputStream os = Files.newOutputStream(file);
+             IndexOutput out = new OutputStreamIndexOutput(file.toString(), file.getFileName().toString(), os, 8192))
+        {
+            CodecUtil.writeHeader(out, CODEC_NAME, VERSION_CURRENT);
+            out.writeByte((byte) format.ordinal());
+            out.writeVInt(normalizer);
+            surfaceForms.save(out, out);
+            out.writeByte((byte) (prefilter == null ? 0 : 1));
+            if (prefilter != null)
+                prefilter.write(out);
+            out.writeByte((byte) (table == null ? 0 : 1));
+            if (table != null)
+                table.write(out);
+            out.writeByte((byte) (prefixes == null ? 0 : 1));
+            if (prefixes != null)
+                prefixes.write(out);
+            CodecUtil.writeFooter(out);
+        }
+    }
+
+    /**
+     * Create glue morphemes FST.
+     */
+    static FST<Object> createMorphemesFST(String [] glueMorphemes) throws IOException
+    {
+        String [] morphemes = new String [glueMorphemes.length];
+
+        // Inverse and sort.
+        for (int i = 0; i < morphemes.length; i++)
+        {
+            morphemes[i] = new StringBuilder(glueMorphemes[i]).reverse().toString();
+        }
+        Arrays.sort(morphemes);
+
+        // Build FST.
+        FSTCompiler<Object> compiler = new FSTCompiler.Builder<>(FST.INPUT_TYPE.BYTE4,
+            NoOutputs.getSingleton()).build();
+        final Object nothing = NoOutputs.getSingleton().getNoOutput();
+        IntsRefBuilder intsBuilder = new IntsRefBuilder();
+
+        for (String morpheme : morphemes)
+        {
+            GermanCompoundSplitter.UTF16ToUTF32(morpheme, intsBuilder);
+            compiler.add(intsBuilder.get(), nothing);
+        }
+
+        FST.FSTMetadata<Object> metadata = compiler.compile();
+        return FST.fromFSTReader(metadata, compiler.getFSTReader());
+    }
+}
@@ -0,0 +1,324 @@
+package org.apache.lucene.analysis.de.compounds;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and a split latency histogram of one {@link CompoundDictionary}, aggregated over all
+ * splitters and token filters using it.
+ *
+ * <ul>
+ *   <li>terms seen and terms skipped (shorter than <code>minWordSize</code>, keywords or protected words) by
+ *   {@link GraphGermanCompoundTokenFilter}, and the tokens it emitted.  Filters add their counts
+ *   when the stream ends.</li>
+ *   <li>split attempts of {@link GermanCompoundSplitter}, terms with at least one decomposition,
+ *   decompositions found and FST arcs traversed.</li>
+ *   <li>split latency, in power of two buckets of nanoseconds.</li>
+ * </ul>
+ *
+ * All counters are {@link LongAdder}s, updating them does not contend between threads.  Each
+ * split is also reported to the registered {@link Listener}s, and the metrics can be exposed as a
+ * JMX MBean ({@link #registerMBean()}).
+ */
+public final class CompoundMetrics implements CompoundMetricsMBean
+{
+    /**
+     * Receives every split, on the splitting thread.  Implementations must be thread safe and
+     * fast, they run on the analysis hot path.
+     */
+    public interface Listener
+    {
+        /**
+         * @param termLength Length of the term in chars.
+         * @param decompositions Number of decompositions found.
+         * @param arcs FST arcs traversed, <code>0</code> for terms answered without a search.
+         * @param nanos Time spent in the splitter.
+         */
+        void onSplit(int termLength, int decompositions, int arcs, long nanos);
+    }
+
+    /**
+     * Latency buckets: bucket <code>i</code> counts splits of less than <code>2^i</code>
+     * nanoseconds (and at least <code>2^(i-1)</code>).
+     */
+    static final int BUCKETS = 40;
+
+    private static final Listener [] NO_LISTENERS = new Listener [0];
+
+    private final String dictionary;
+
+    private final LongAdder termsSeen = new LongAdder();
+    private final LongAdder termsSkipped = new LongAdder();
+    private final LongAdder tokensEmitted = new LongAdder();
+    private final LongAdder splitAttempts = new LongAdder();
+    private final LongAdder termsDecomposed = new LongAdder();
+    private final LongAdder decompositionsFound = new LongAdder();
+    private final LongAdder arcsTraversed = new LongAdder();
+    private final LongAdder splitNanos = new LongAdder();
+    private final LongAccumulator maxSplitNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder [] latency = new LongAdder [BUCKETS];
+
+    private volatile Listener [] listeners = NO_LISTENERS;
+    private ObjectName objectName;
+
+    CompoundMetrics(String dictionary)
+    {
+        this.dictionary = dictionary;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            latency[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record a split.
+     */
+    void split(int termLength, int decompositions, int arcs, long nanos)
+    {
+        splitAttempts.increment();
+        if (decompositions > 0)
+        {
+            termsDecomposed.increment();
+            decompositionsFound.add(decompositions);
+        }
+        if (arcs > 0)
+            arcsTraversed.add(arcs);
+        splitNanos.add(nanos);
+        maxSplitNanos.accumulate(nanos);
+        latency[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, nanos)))].increment();
+
+        for (Listener listener : listeners)
+        {
+            listener.onSplit(termLength, decompositions, arcs, nanos);
+        }
+    }
+
+    /**
+     * Record the terms of a token stream.
+     */
+    void terms(long seen, long skipped, long emitted)
+    {
+        termsSeen.add(seen);
+        termsSkipped.add(skipped);
+        tokensEmitted.add(emitted);
+    }
+
+    public synchronized void addListener(Listener listener)
+    {
+        final Listener [] current = listeners;
+        final Listener [] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = listener;
+        listeners = next;
+    }
+
+    public synchronized void removeListener(Listener listener)
+    {
+        final Listener [] current = listeners;
+        for (int i = 0; i < current.length; i++)
+        {
+            if (current[i] == listener)
+            {
+                final Listener [] next = new Listener [current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                listeners = next;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Register these metrics with the platform MBean server, under
+     * <code>org.apache.lucene.analysis.de.compounds:type=CompoundMetrics,dictionary=...</code>.
+     * Registering twice has no effect, the MBean is unregistered when the dictionary is released.
+     */
+    public synchronized ObjectName registerMBean()
+    {
+        if (objectName == null)
+        {
+            try
+            {
+                final ObjectName name = new ObjectName(getClass().getPackage().getName()
+                    + ":type=" + getClass().getSimpleName() + ",dictionary=" + ObjectName.quote(dictionary));
+                final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                if (!server.isRegistered(name))
+                    server.registerMBean(this, name);
+                objectName = name;
+            }
+            catch (JMException e)
+            {
+                throw new RuntimeException("Failed to register metrics of " + dictionary, e);
+            }
+        }
+        return objectName;
+    }
+
+    synchronized void unregisterMBean()
+    {
+        if (objectName != null)
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+            catch (JMException e)
+            {
+                throw new RuntimeException("Failed to unregister metrics of " + dictionary, e);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public String getDictionary()
+    {
+        return dictionary;
+    }
+
+    @Override
+    public long getTermsSeen()
+    {
+        return termsSeen.sum();
+    }
+
+    @Override
+    public long getTermsSkipped()
+    {
+        return termsSkipped.sum();
+    }
+
+    @Override
+    public long getSplitAttempts()
+    {
+        return splitAttempts.sum();
+    }
+
+    @Override
+    public long getTermsDecomposed()
+    {
+        return termsDecomposed.sum();
+    }
+
+    @Override
+    public long getDecompositionsFound()
+    {
+        return decompositionsFound.sum();
+    }
+
+    @Override
+    public long getTokensEmitted()
+    {
+        return tokensEmitted.sum();
+    }
+
+    @Override
+    public long getArcsTraversed()
+    {
+        return arcsTraversed.sum();
+    }
+
+    @Override
+    public double getMeanSplitLatencyNanos()
+    {
+        final long attempts = splitAttempts.sum();
+        return attempts == 0 ? 0 : (double) splitNanos.sum() / attempts;
+    }
+
+    @Override
+    public long getSplitLatencyP50Nanos()
+    {
+        return splitLatencyPercentile(0.5);
+    }
+
+    @Override
+    public long getSplitLatencyP99Nanos()
+    {
+        return splitLatencyPercentile(0.99);
+    }
+
+    @Override
+    public long getSplitLatencyP999Nanos()
+    {
+        return splitLatencyPercentile(0.999);
+    }
+
+    @Override
+    public long getMaxSplitLatencyNanos()
+    {
+        return maxSplitNanos.get();
+    }
+
+    /**
+     * Upper bound of the latency bucket holding the given fraction of splits, in nanoseconds.
+     */
+    public long splitLatencyPercentile(double fraction)
+    {
+        final long [] counts = new long [BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts[i] = latency[i].sum();
+            total += counts[i];
+        }
+        if (total == 0)
+            return 0;
+        final long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+                return 1L << i;
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    /**
+     * Number of splits per latency bucket, see {@link #BUCKETS}.
+     */
+    public long [] splitLatencyHistogram()
+    {
+        final long [] counts = new long [BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts[i] = latency[i].sum();
+        }
+        return counts;
+    }
+
+    @Override
+    public void reset()
+    {
+        termsSeen.reset();
+        termsSkipped.reset();
+        tokensEmitted.reset();
+        splitAttempts.reset();
+        termsDecomposed.reset();
+        decompositionsFound.reset();
+        arcsTraversed.reset();
+        splitNanos.reset();
+        maxSplitNanos.reset();
+        for (LongAdder bucket : latency)
+        {
+            bucket.reset();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s(dictionary=%s, termsSeen=%d, termsSkipped=%d, splitAttempts=%d, "
+            + "termsDecomposed=%d, decompositionsFound=%d, tokensEmitted=%d, arcsTraversed=%d, "
+            + "meanSplitNanos=%.0f, p50=%d, p99=%d, max=%d)", getClass().getSimpleName(), dictionary,
+            getTermsSeen(), getTermsSkipped(), getSplitAttempts(), getTermsDecomposed(),
+            getDecompositionsFound(), getTokensEmitted(), getArcsTraversed(),
+            getMeanSplitLatencyNanos(), getSplitLatencyP50Nanos(), getSplitLatencyP99Nanos(),
+            getMaxSplitLatencyNanos());
+    }
+}
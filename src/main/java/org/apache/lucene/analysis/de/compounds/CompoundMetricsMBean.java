@@ -0,0 +1,35 @@
+package org.apache.lucene.analysis.de.compounds;
+
+/**
+ * JMX view of {@link CompoundMetrics}, registered with {@link CompoundMetrics#registerMBean()}.
+ */
+public interface CompoundMetricsMBean
+{
+    String getDictionary();
+
+    long getTermsSeen();
+
+    long getTermsSkipped();
+
+    long getSplitAttempts();
+
+    long getTermsDecomposed();
+
+    long getDecompositionsFound();
+
+    long getTokensEmitted();
+
+    long getArcsTraversed();
+
+    double getMeanSplitLatencyNanos();
+
+    long getSplitLatencyP50Nanos();
+
+    long getSplitLatencyP99Nanos();
+
+    long getSplitLatencyP999Nanos();
+
+    long getMaxSplitLatencyNanos();
+
+    void reset();
+}
@@ -0,0 +1,342 @@
+package org.apache.lucene.analysis.de.compounds;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.IntsRefFSTEnum;
+
+/**
+ * Compact probabilistic filter rejecting terms that can not be decompounded, before the FSTs are
+ * walked.
+ *
+ * Every decomposition starts and ends with a dictionary word and has at least two words, so a
+ * compound must begin with a word shorter than the term and end with one.  The filter is a Bloom
+ * filter over the head and the tail grams of all dictionary words: the first and the last
+ * {@link #getGramLength()} code points of longer words, and shorter words as a whole.  A term
+ * passes if one of its heads (of up to gramLength code points, not covering the whole term) is a
+ * head gram and one of its tails is a tail gram.
+ *
+ * The filter has no false negatives, a rejected term never has a decomposition, so it never
+ * changes the splitter's output.  False positives only cost the full traversal.  On the
+ * non-compound terms of <code>morphy-google-intersect.20000</code> about three quarters are
+ * rejected with the default gram length.
+ *
+ * Filters are built by {@link CompileCompoundDictionaries} and stored with the dictionary.
+ */
+public final class CompoundPrefilter implements Accountable
+{
+    private static final long BASE_RAM_BYTES_USED =
+        RamUsageEstimator.shallowSizeOfInstance(CompoundPrefilter.class);
+
+    public static final int DEFAULT_GRAM_LENGTH = 6;
+    public static final int DEFAULT_BITS_PER_KEY = 10;
+
+    /**
+     * Hash seeds separating head grams from tail grams.
+     */
+    private static final long HEAD_SEED = 0x243F6A8885A308D3L;
+    private static final long TAIL_SEED = 0x13198A2E03707344L;
+
+    private final int gramLength;
+    private final int hashCount;
+    private final int keyCount;
+    private final long numBits;
+    private final long [] bits;
+
+    private CompoundPrefilter(int gramLength, int hashCount, int keyCount, long numBits, long [] bits)
+    {
+        this.gramLength = gramLength;
+        this.hashCount = hashCount;
+        this.keyCount = keyCount;
+        this.numBits = numBits;
+        this.bits = bits;
+    }
+
+    /**
+     * Whether the term may have a decomposition.  Case is folded per code point, like
+     * {@link GermanCompoundSplitter#split(char[], int, int, SplitContext)} does.
+     *
+     * @return <code>false</code> if the term certainly has no decomposition.
+     */
+    public boolean mayDecompose(char [] buffer, int offset, int length)
+    {
+        final int end = offset + length;
+
+        // ends with a word (checked first, it is more selective).
+        boolean found = false;
+        long h = TAIL_SEED;
+        for (int i = end, grams = 0; i > offset && grams < gramLength;)
+        {
+            final int cp = Character.codePointBefore(buffer, i, offset);
+            i -= Character.charCount(cp);
+            if (i == offset) break;
+            h = step(h, Character.toLowerCase(cp));
+            grams++;
+            if (contains(h))
+            {
+                found = true;
+                break;
+            }
+        }
+        if (!found) return false;
+
+        // starts with a word.
+        h = HEAD_SEED;
+        for (int i = offset, grams = 0; i < end && grams < gramLength;)
+        {
+            final int cp = Character.codePointAt(buffer, i, end);
+            i += Character.charCount(cp);
+            if (i == end) break;
+            h = step(h, Character.toLowerCase(cp));
+            grams++;
+            if (contains(h))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Number of code points of head and tail grams.
+     */
+    public int getGramLength()
+    {
+        return gramLength;
+    }
+
+    /**
+     * Number of grams added to the filter.
+     */
+    public int getKeyCount()
+    {
+        return keyCount;
+    }
+
+    /**
+     * The theoretical false positive rate of a single probe.
+     */
+    public double expectedFalsePositiveRate()
+    {
+        return Math.pow(1 - Math.exp(-(double) hashCount * keyCount / numBits), hashCount);
+    }
+
+    @Override
+    public long ramBytesUsed()
+    {
+        return BASE_RAM_BYTES_USED + RamUsageEstimator.sizeOf(bits);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s(gramLength=%d, keys=%d, bits=%d, hashes=%d, fpp=%.4f)",
+            getClass().getSimpleName(), gramLength, keyCount, numBits, hashCount,
+            expectedFalsePositiveRate());
+    }
+
+    private boolean contains(long hash)
+    {
+        final long x = mix(hash);
+        final int h1 = (int) x;
+        final int h2 = (int) (x >>> 32) | 1;
+        for (int i = 0; i < hashCount; i++)
+        {
+            final long bit = ((h1 + i * h2) & 0xFFFFFFFFL) * numBits >>> 32;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static long step(long hash, int codePoint)
+    {
+        return (hash ^ codePoint) * 0x9E3779B97F4A7C15L;
+    }
+
+    /**
+     * Murmur3 finalizer.
+     */
+    private static long mix(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public void write(DataOutput out) throws IOException
+    {
+        out.writeVInt(gramLength);
+        out.writeVInt(hashCount);
+        out.writeVInt(keyCount);
+        out.writeVLong(numBits);
+        out.writeVInt(bits.length);
+        for (long word : bits)
+        {
+            out.writeLong(word);
+        }
+    }
+
+    public static CompoundPrefilter read(DataInput in) throws IOException
+    {
+        final int gramLength = in.readVInt();
+        final int hashCount = in.readVInt();
+        final int keyCount = in.readVInt();
+        final long numBits = in.readVLong();
+        final long [] bits = new long [in.readVInt()];
+        for (int i = 0; i < bits.length; i++)
+        {
+            bits[i] = in.readLong();
+        }
+        return new CompoundPrefilter(gramLength, hashCount, keyCount, numBits, bits);
+    }
+
+    /**
+     * Build a prefilter from the reversed (right-to-left) words of a surface forms FST, glue
+     * morphemes are skipped.
+     *
+     * @param format How words are stored in the FST.
+     */
+    public static CompoundPrefilter build(FST<Object> surfaceForms, CompoundDictionary.Format format,
+        int gramLength, int bitsPerKey) throws IOException
+    {
+        final boolean bidirectional = format == CompoundDictionary.Format.BIDIRECTIONAL;
+        Builder builder = new Builder(gramLength, bitsPerKey);
+        IntsRefFSTEnum<Object> words = new IntsRefFSTEnum<>(surfaceForms);
+        int [] word = new int [16];
+        for (IntsRefFSTEnum.InputOutput<Object> entry; (entry = words.next()) != null;)
+        {
+            final IntsRef input = entry.input;
+            final int length = bidirectional ? input.length - 1 : input.length;
+            if (bidirectional && (length < 0
+                || input.ints[input.offset + length] != GermanCompoundSplitter.RTL_SYMBOL))
+                continue;
+            if (format == CompoundDictionary.Format.MERGED && length > 0
+                && input.ints[input.offset + length - 1] == GermanCompoundSplitter.GLUE_SYMBOL)
+                continue;
+            word = ArrayUtil.grow(word, length);
+            for (int i = 0; i < length; i++)
+            {
+                word[i] = input.ints[input.offset + length - 1 - i];
+            }
+            builder.add(word, 0, length);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Collects the head and tail grams of dictionary words.
+     */
+    public static final class Builder
+    {
+        private final int gramLength;
+        private final int bitsPerKey;
+        private long [] hashes = new long [1024];
+        private int size;
+
+        public Builder(int gramLength, int bitsPerKey)
+        {
+            if (gramLength < 1 || bitsPerKey < 1)
+            {
+                throw new IllegalArgumentException("gramLength and bitsPerKey must be positive");
+            }
+            this.gramLength = gramLength;
+            this.bitsPerKey = bitsPerKey;
+        }
+
+        /**
+         * Add a (lowercased) word, given as code points.
+         */
+        public void add(int [] codePoints, int offset, int length)
+        {
+            if (length == 0)
+                return;
+            final int grams = Math.min(gramLength, length);
+            long head = HEAD_SEED;
+            long tail = TAIL_SEED;
+            for (int i = 0; i < grams; i++)
+            {
+                head = step(head, codePoints[offset + i]);
+                tail = step(tail, codePoints[offset + length - 1 - i]);
+            }
+            addHash(head);
+            addHash(tail);
+        }
+
+        /**
+         * Add the head gram of a (lowercased) word, given as code points.
+         */
+        public void addHead(int [] codePoints, int offset, int length)
+        {
+            addGram(HEAD_SEED, codePoints, offset, length);
+        }
+
+        /**
+         * Add the tail gram of a (lowercased) word, given as its code points in reverse order.
+         */
+        public void addReversedTail(int [] codePoints, int offset, int length)
+        {
+            addGram(TAIL_SEED, codePoints, offset, length);
+        }
+
+        private void addGram(long seed, int [] codePoints, int offset, int length)
+        {
+            if (length == 0)
+                return;
+            long hash = seed;
+            for (int i = 0, grams = Math.min(gramLength, length); i < grams; i++)
+            {
+                hash = step(hash, codePoints[offset + i]);
+            }
+            // words sharing a gram are often added in a row, skip repeats early.
+            if (size > 0 && (hashes[size - 1] == hash || (size > 1 && hashes[size - 2] == hash)))
+                return;
+            addHash(hash);
+        }
+
+        private void addHash(long hash)
+        {
+            hashes = ArrayUtil.grow(hashes, size + 1);
+            hashes[size++] = hash;
+        }
+
+        public CompoundPrefilter build()
+        {
+            // many words share their grams, only distinct grams are counted.
+            Arrays.sort(hashes, 0, size);
+            int keys = 0;
+            for (int i = 0; i < size; i++)
+            {
+                if (i == 0 || hashes[i] != hashes[i - 1])
+                    hashes[keys++] = hashes[i];
+            }
+
+            final long numBits = Math.max(64, Math.min((long) keys * bitsPerKey, Integer.MAX_VALUE));
+            final int hashCount = Math.max(1, (int) Math.round(bitsPerKey * Math.log(2)));
+            final CompoundPrefilter filter = new CompoundPrefilter(gramLength, hashCount, keys,
+                numBits, new long [(int) ((numBits + 63) >>> 6)]);
+            for (int i = 0; i < keys; i++)
+            {
+                final long x = mix(hashes[i]);
+                final int h1 = (int) x;
+                final int h2 = (int) (x >>> 32) | 1;
+                for (int j = 0; j < hashCount; j++)
+                {
+                    final long bit = ((h1 + j * h2) & 0xFFFFFFFFL) * numBits >>> 32;
+                    filter.bits[(int) (bit >>> 6)] |= 1L << bit;
+                }
+            }
+            return filter;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package org.apache.lucene.analysis.de.compounds;
+
+import java.io.IOException;
+import java.util.TreeSet;
+
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.FSTCompiler;
+import org.apache.lucene.util.fst.NoOutputs;
+
+/**
+ * Compound prefixes detached from terms that are no words: bound stems like <code>Abschlepp-</code>,
+ * <code>Heiz-</code> or <code>Wohn-</code>, which only occur as the first part of compounds and are
+ * not dictionary words themselves (<code>src/data/compound-prefixes.txt</code>).
+ *
+ * The prefixes are an FST of case folded code points in reading order, so the longest prefix of a
+ * term is found with a single forward traversal, which stops at the first code point no prefix
+ * continues with, usually after one or two arcs.  See
+ * {@link GermanCompoundSplitter#split(char[], int, int, SplitContext)} for how the remainder is
+ * decomposed.
+ *
+ * Prefixes are compiled by {@link CompileCompoundDictionaries} (<code>--prefixes</code>) and
+ * stored with the dictionary, or configured with {@link CompoundDictionary#withPrefixes(String...)}.
+ * The bundled dictionary has none.  They add decompositions, the search of the whole term still
+ * runs, so splitting with prefixes is slower.
+ */
+public final class CompoundPrefixes implements Accountable
+{
+    private static final long BASE_RAM_BYTES_USED =
+        RamUsageEstimator.shallowSizeOfInstance(CompoundPrefixes.class);
+
+    /**
+     * Minimum length, in chars, of the remainder of a term after its prefix.
+     */
+    static final int MIN_REMAINDER = 3;
+
+    private final FST<Object> prefixes;
+    private final int size;
+
+    private CompoundPrefixes(FST<Object> prefixes, int size)
+    {
+        this.prefixes = prefixes;
+        this.size = size;
+    }
+
+    /**
+     * Length in chars of the longest prefix of a term that leaves at least {@link #MIN_REMAINDER}
+     * chars, <code>0</code> if the term has none.  Each arc is charged to the arc budget of the
+     * context.
+     */
+    int longestPrefix(char [] buffer, int offset, int length, SplitContext context) throws IOException
+    {
+        final FST.BytesReader reader = context.prefixReader(prefixes);
+        final FST.Arc<Object> arc = prefixes.getFirstArc(context.prefixArc);
+        int longest = 0;
+        for (int i = offset, end = offset + length - MIN_REMAINDER; i < end;)
+        {
+            if (--context.arcs < 0)
+            {
+                context.truncated = true;
+                break;
+            }
+            final int cp = Character.codePointAt(buffer, i, end);
+            if (prefixes.findTargetArc(Character.toLowerCase(cp), arc, arc, reader) == null)
+                break;
+            i += Character.charCount(cp);
+            if (arc.isFinal())
+                longest = i - offset;
+        }
+        return longest;
+    }
+
+    /**
+     * Number of prefixes.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public long ramBytesUsed()
+    {
+        return BASE_RAM_BYTES_USED + prefixes.ramBytesUsed();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s(prefixes=%d, bytes=%d)", getClass().getSimpleName(), size,
+            ramBytesUsed());
+    }
+
+    public void write(DataOutput out) throws IOException
+    {
+        out.writeVInt(size);
+        prefixes.save(out, out);
+    }
+
+    public static CompoundPrefixes read(DataInput in) throws IOException
+    {
+        final int size = in.readVInt();
+        final FST<Object> prefixes = new FST<>(FST.readMetadata(in, NoOutputs.getSingleton()), in);
+        return new CompoundPrefixes(prefixes, size);
+    }
+
+    /**
+     * Compile prefixes, case is ignored.
+     *
+     * @param prefixes Prefixes (in left-to-right order), blank ones are skipped.
+     */
+    public static CompoundPrefixes build(Iterable<String> prefixes) throws IOException
+    {
+        // FST inputs are sorted by code point, String order differs for surrogate pairs.
+        final TreeSet<String> sorted = new TreeSet<>((a, b) -> {
+            for (int i = 0; i < a.length() && i < b.length();)
+            {
+                final int ca = a.codePointAt(i), cb = b.codePointAt(i);
+                if (ca != cb)
+                    return Integer.compare(ca, cb);
+                i += Character.charCount(ca);
+            }
+            return Integer.compare(a.length(), b.length());
+        });
+        for (String prefix : prefixes)
+        {
+            // case folded per code point, like terms are looked up.
+            final int [] folded = prefix.trim().codePoints().map(Character::toLowerCase).toArray();
+            if (folded.length > 0)
+                sorted.add(new String(folded, 0, folded.length));
+        }
+        if (sorted.isEmpty())
+        {
+            throw new IllegalArgumentException("No prefixes");
+        }
+
+        final FSTCompiler<Object> compiler = new FSTCompiler.Builder<>(FST.INPUT_TYPE.BYTE4,
+            NoOutputs.getSingleton()).build();
+        final Object nothing = NoOutputs.getSingleton().getNoOutput();
+        final IntsRefBuilder scratch = new IntsRefBuilder();
+        for (String prefix : sorted)
+        {
+            compiler.add(GermanCompoundSplitter.UTF16ToUTF32(prefix, scratch).get(), nothing);
+        }
+        return new CompoundPrefixes(FST.fromFSTReader(compiler.compile(), compiler.getFSTReader()),
+            sorted.size());
+    }
+}
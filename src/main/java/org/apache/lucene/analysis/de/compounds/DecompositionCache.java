@@ -0,0 +1,323 @@
+package org.apache.lucene.analysis.de.compounds;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * Bounded, concurrent cache of word decompositions, keyed on the lowercased term.
+ *
+ * German text is Zipfian, the same compounds are decomposed over and over again.  The cache is
+ * split into independently locked stripes, each stripe is a segmented LRU: new entries go into a
+ * probation segment, entries hit a second time are promoted into a protected segment, so a burst
+ * of one-off terms can not flush the frequent ones.  The capacity is size-aware, expressed in
+ * chars of the cached terms plus the ints of their encoded split points.
+ *
+ * Lookups probe with the term chars of a {@link SplitContext} and copy the cached split points
+ * into it, so a cache hit does not allocate.
+ */
+public final class DecompositionCache implements Accountable
+{
+    /**
+     * Share of each stripe reserved for the protected segment.
+     */
+    private static final double PROTECTED_RATIO = 0.8;
+
+    /**
+     * Rough per entry heap overhead (map node, key, entry, arrays) used for {@link #ramBytesUsed()}.
+     */
+    private static final long ENTRY_OVERHEAD_BYTES = 128;
+
+    private final Segment [] segments;
+    private final long maxWeight;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxWeight Maximum weight held, in term chars plus split point ints.
+     */
+    public DecompositionCache(long maxWeight)
+    {
+        if (maxWeight <= 0)
+        {
+            throw new IllegalArgumentException("maxWeight must be positive: " + maxWeight);
+        }
+        this.maxWeight = maxWeight;
+
+        // small caches use a single stripe, large ones up to 16 stripes of at least 4k chars.
+        int count = Integer.highestOneBit((int) Math.max(1, Math.min(16, maxWeight / 4096)));
+        segments = new Segment [count];
+        for (int i = 0; i < count; i++)
+        {
+            segments[i] = new Segment(maxWeight / count);
+        }
+    }
+
+    /**
+     * Load the cached decompositions of the context's current term into the context.
+     *
+     * @return <code>true</code> on a cache hit.
+     */
+    boolean get(SplitContext context)
+    {
+        int [] encoded = segmentFor(context.cacheKey).get(context.cacheKey);
+        if (encoded == null)
+        {
+            misses.increment();
+            return false;
+        }
+        hits.increment();
+        context.decode(encoded);
+        return true;
+    }
+
+    /**
+     * Cache the decompositions held by the context for its current term.
+     */
+    void put(SplitContext context)
+    {
+        put(context.cacheKey.copy(), context.encode());
+    }
+
+    void put(CacheKey key, int [] encoded)
+    {
+        segmentFor(key).put(key, encoded, key.length + encoded.length);
+    }
+
+    private Segment segmentFor(CacheKey key)
+    {
+        int h = key.hash;
+        h ^= (h >>> 16);
+        return segments[h & (segments.length - 1)];
+    }
+
+    public long hitCount()
+    {
+        return hits.sum();
+    }
+
+    public long missCount()
+    {
+        return misses.sum();
+    }
+
+    public long evictionCount()
+    {
+        return evictions.sum();
+    }
+
+    /**
+     * Ratio of lookups answered from the cache, <code>0</code> before the first lookup.
+     */
+    public double hitRate()
+    {
+        long h = hitCount();
+        long total = h + missCount();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Number of cached terms.
+     */
+    public int size()
+    {
+        int size = 0;
+        for (Segment segment : segments)
+        {
+            synchronized (segment)
+            {
+                size += segment.probation.size() + segment.protect.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Current weight.
+     */
+    public long weight()
+    {
+        long weight = 0;
+        for (Segment segment : segments)
+        {
+            synchronized (segment)
+            {
+                weight += segment.probationWeight + segment.protectedWeight;
+            }
+        }
+        return weight;
+    }
+
+    public long maxWeight()
+    {
+        return maxWeight;
+    }
+
+    @Override
+    public long ramBytesUsed()
+    {
+        return weight() * Integer.BYTES + size() * ENTRY_OVERHEAD_BYTES
+            + RamUsageEstimator.shallowSizeOf(segments);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s(size=%d, weight=%d/%d, hits=%d, misses=%d, evictions=%d)",
+            getClass().getSimpleName(), size(), weight(), maxWeight, hitCount(), missCount(),
+            evictionCount());
+    }
+
+    /**
+     * A range of chars used as a cache key, compared ignoring case.  The context owns one mutable
+     * key used to probe the term in the caller's buffer, cached entries hold an immutable, folded
+     * {@link #copy()}.  Case is folded per char: two keys equal this way are also equal when
+     * folded per code point, as the splitter does.
+     */
+    static final class CacheKey
+    {
+        char [] chars;
+        int offset;
+        int length;
+        int hash;
+
+        CacheKey set(char [] chars, int offset, int length)
+        {
+            this.chars = chars;
+            this.offset = offset;
+            this.length = length;
+            int h = 0;
+            for (int i = offset, end = offset + length; i < end; i++)
+            {
+                h = 31 * h + Character.toLowerCase(chars[i]);
+            }
+            this.hash = h;
+            return this;
+        }
+
+        CacheKey copy()
+        {
+            final char [] folded = new char [length];
+            for (int i = 0; i < length; i++)
+            {
+                folded[i] = Character.toLowerCase(chars[offset + i]);
+            }
+            return new CacheKey().set(folded, 0, length);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof CacheKey))
+                return false;
+            CacheKey o = (CacheKey) other;
+            if (hash != o.hash || length != o.length)
+                return false;
+            for (int i = 0; i < length; i++)
+            {
+                if (Character.toLowerCase(chars[offset + i]) != Character.toLowerCase(o.chars[o.offset + i]))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private static final class CacheEntry
+    {
+        final CacheKey key;
+        final int [] value;
+        final int weight;
+
+        CacheEntry(CacheKey key, int [] value, int weight)
+        {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * One lock stripe, a segmented LRU.  Both maps are in access order, the eldest entry is the
+     * least recently used one.  Entries keep their own key, the probe key is never inserted.
+     */
+    private final class Segment
+    {
+        final LinkedHashMap<CacheKey, CacheEntry> probation = new LinkedHashMap<>(16, 0.75f, true);
+        final LinkedHashMap<CacheKey, CacheEntry> protect = new LinkedHashMap<>(16, 0.75f, true);
+        final long maxWeight;
+        final long maxProtectedWeight;
+        long probationWeight;
+        long protectedWeight;
+
+        Segment(long maxWeight)
+        {
+            this.maxWeight = Math.max(1, maxWeight);
+            this.maxProtectedWeight = (long) (this.maxWeight * PROTECTED_RATIO);
+        }
+
+        synchronized int [] get(CacheKey probe)
+        {
+            CacheEntry entry = protect.get(probe);
+            if (entry != null)
+            {
+                return entry.value;
+            }
+
+            entry = probation.remove(probe);
+            if (entry == null)
+            {
+                return null;
+            }
+
+            // second hit, promote to the protected segment and demote its least recently used
+            // entries back into probation if it overflows.
+            probationWeight -= entry.weight;
+            protect.put(entry.key, entry);
+            protectedWeight += entry.weight;
+            while (protectedWeight > maxProtectedWeight && protect.size() > 1)
+            {
+                Iterator<CacheEntry> it = protect.values().iterator();
+                CacheEntry eldest = it.next();
+                it.remove();
+                protectedWeight -= eldest.weight;
+                probation.put(eldest.key, eldest);
+                probationWeight += eldest.weight;
+            }
+            return entry.value;
+        }
+
+        synchronized void put(CacheKey key, int [] value, int weight)
+        {
+            if (weight > maxWeight || probation.containsKey(key) || protect.containsKey(key))
+            {
+                return;
+            }
+            probation.put(key, new CacheEntry(key, value, weight));
+            probationWeight += weight;
+
+            while (probationWeight + protectedWeight > maxWeight)
+            {
+                LinkedHashMap<CacheKey, CacheEntry> victims = probation.isEmpty() ? protect : probation;
+                Iterator<CacheEntry> it = victims.values().iterator();
+                CacheEntry eldest = it.next();
+                it.remove();
+                if (victims == probation)
+                    probationWeight -= eldest.weight;
+                else
+                    protectedWeight -= eldest.weight;
+                evictions.increment();
+            }
+        }
+    }
+}
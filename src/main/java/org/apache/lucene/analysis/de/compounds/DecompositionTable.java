@@ -0,0 +1,200 @@
+package org.apache.lucene.analysis.de.compounds;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.FSTCompiler;
+import org.apache.lucene.util.fst.NoOutputs;
+
+/**
+ * Precomputed decompositions of frequent words, answered with a single FST lookup instead of a
+ * search.
+ *
+ * Every entry of the FST is a word, case folded per code point like
+ * {@link GermanCompoundSplitter#split(char[], int, int, SplitContext)} does, followed by
+ * {@link #SEPARATOR} and its encoded split points: the number of decompositions, then the part
+ * count and the part offsets of each.  A word has a single path after the separator, which is
+ * read label by label.  The FST has no outputs, so lookups do not allocate, and the encodings of
+ * words with the same split points (all words without decompositions, for one) share their
+ * suffix.
+ *
+ * Tables are built by {@link CompileCompoundDictionaries} (<code>--precompute</code>) with the
+ * default {@link SplitLimits}, words whose search hit a limit are left out.  A splitter only
+ * consults the table with default step and arc limits, so the table never changes its output.
+ */
+public final class DecompositionTable implements Accountable
+{
+    private static final long BASE_RAM_BYTES_USED =
+        RamUsageEstimator.shallowSizeOfInstance(DecompositionTable.class);
+
+    /**
+     * Label between a word and its split points, terms containing it are never looked up.
+     */
+    static final int SEPARATOR = 0;
+
+    private final FST<Object> words;
+    private final int size;
+
+    private DecompositionTable(FST<Object> words, int size)
+    {
+        this.words = words;
+        this.size = size;
+    }
+
+    /**
+     * Load the precomputed decompositions of a term into the context.
+     *
+     * @return <code>false</code> if the term is not in the table.
+     */
+    boolean get(char [] buffer, int offset, int length, SplitContext context) throws IOException
+    {
+        final FST.BytesReader reader = context.tableReader(words);
+        final FST.Arc<Object> arc = words.getFirstArc(context.tableArc);
+        for (int i = offset, end = offset + length; i < end;)
+        {
+            final int cp = Character.codePointAt(buffer, i, end);
+            if (cp == SEPARATOR || words.findTargetArc(Character.toLowerCase(cp), arc, arc, reader) == null)
+                return false;
+            i += Character.charCount(cp);
+        }
+        if (words.findTargetArc(SEPARATOR, arc, arc, reader) == null)
+            return false;
+
+        context.partsSize = 0;
+        context.count = 0;
+        for (int d = 0, n = next(arc, reader); d < n; d++)
+        {
+            final int parts = next(arc, reader);
+            final int first = context.partsSize;
+            for (int p = 0; p < parts; p++)
+            {
+                final int start = next(arc, reader);
+                context.addPart(start, next(arc, reader));
+            }
+            context.addDecomposition(first, parts);
+        }
+        return true;
+    }
+
+    /**
+     * Follow the single arc of the split points path.
+     */
+    private int next(FST.Arc<Object> arc, FST.BytesReader reader) throws IOException
+    {
+        return words.readFirstTargetArc(arc, arc, reader).label();
+    }
+
+    /**
+     * Number of words in the table.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public long ramBytesUsed()
+    {
+        return BASE_RAM_BYTES_USED + words.ramBytesUsed();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s(words=%d, bytes=%d)", getClass().getSimpleName(), size,
+            ramBytesUsed());
+    }
+
+    public void write(DataOutput out) throws IOException
+    {
+        out.writeVInt(size);
+        words.save(out, out);
+    }
+
+    public static DecompositionTable read(DataInput in) throws IOException
+    {
+        final int size = in.readVInt();
+        final FST<Object> words = new FST<>(FST.readMetadata(in, NoOutputs.getSingleton()), in);
+        return new DecompositionTable(words, size);
+    }
+
+    /**
+     * Collects words and their decompositions.
+     */
+    public static final class Builder
+    {
+        private final List<IntsRef> entries = new ArrayList<>();
+        private final Set<IntsRef> words = new HashSet<>();
+        private final IntsRefBuilder entry = new IntsRefBuilder();
+
+        /**
+         * Add a word with the decompositions the context holds for it, ignored if the word was
+         * added before.
+         */
+        public void add(CharSequence word, SplitContext context)
+        {
+            entry.clear();
+            for (int i = 0; i < word.length();)
+            {
+                final int cp = Character.codePointAt(word, i);
+                if (cp == SEPARATOR)
+                    return;
+                entry.append(Character.toLowerCase(cp));
+                i += Character.charCount(cp);
+            }
+            if (!words.add(IntsRef.deepCopyOf(entry.get())))
+                return;
+
+            entry.append(SEPARATOR);
+            entry.append(context.count());
+            for (int d = 0; d < context.count(); d++)
+            {
+                final int parts = context.partCount(d);
+                entry.append(parts);
+                for (int p = 0; p < parts; p++)
+                {
+                    entry.append(context.partStart(d, p));
+                    entry.append(context.partEnd(d, p));
+                }
+            }
+            entries.add(IntsRef.deepCopyOf(entry.get()));
+        }
+
+        /**
+         * Number of words added.
+         */
+        public int size()
+        {
+            return entries.size();
+        }
+
+        public DecompositionTable build() throws IOException
+        {
+            if (entries.isEmpty())
+            {
+                throw new IllegalStateException("No words added");
+            }
+            // the separator sorts before every code point, so words sort like their entries.
+            entries.sort(null);
+            final FSTCompiler<Object> compiler = new FSTCompiler.Builder<>(FST.INPUT_TYPE.BYTE4,
+                NoOutputs.getSingleton()).build();
+            final Object nothing = NoOutputs.getSingleton().getNoOutput();
+            for (IntsRef e : entries)
+            {
+                compiler.add(e, nothing);
+            }
+            return new DecompositionTable(FST.fromFSTReader(compiler.compile(), compiler.getFSTReader()),
+                entries.size());
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package org.apache.lucene.analysis.de.compounds;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.analysis.CharArrayMap;
+
+
+/**
+ * Decompound every distinct token of UTF-8 text corpora, to evaluate a dictionary against
+ * production text.
+ *
+ * Inputs are memory mapped in chunks that end at line boundaries, chunks are decoded and
+ * tokenized in parallel (a token is a run of letters), every chunk counts its tokens in a
+ * {@link CharArrayMap} without allocating per occurrence and adds the counts to the shared table.
+ * The distinct tokens are then split in parallel with
+ * {@link GermanCompoundSplitter#splitAll(java.util.Collection, ForkJoinPool)}.
+ *
+ * The output has a line per distinct token, most frequent first: the token, its count and its
+ * decompositions, tab separated.  Decompositions are separated by <code>|</code>, their parts by
+ * <code>+</code>.  Parts are lowercased, as returned by {@link GermanCompoundSplitter#split(CharSequence)}:
+ *  <code>
+ *          Finanzbuchhaltungsleitung	12	finanz+buch+haltung+leitung
+ *          Sünderecke	3	sünde+recke|sünder+ecke
+ * </code>
+ */
+public class DecompoundCorpus
+{
+    private static final String USAGE = "Args: [--dictionary words.dict] [--output decompositions.tsv] "
+        + "[--threads n] [--chunk kb] [--min-length n] corpus1.txt corpus2.txt ...";
+
+    static final String DEFAULT_OUTPUT = "decompositions.tsv";
+    static final int DEFAULT_CHUNK_KB = 16 * 1024;
+
+    public static void main(String [] args) throws Exception
+    {
+        if (args.length < 1)
+        {
+            System.out.println("No arguments provided! Please provide corpus file(s) as arguments");
+            System.out.println(USAGE);
+            System.exit(-1);
+        }
+        String clsName = DecompoundCorpus.class.getSimpleName();
+        System.out.println(String.format("%s arguments: %s", clsName, Arrays.toString(args)));
+
+        String dictionaryFile = null;
+        String output = DEFAULT_OUTPUT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long chunkSize = DEFAULT_CHUNK_KB * 1024L;
+        int minLength = GraphGermanCompoundTokenFilter.DEFAULT_MIN_WORD_SIZE;
+        List<Path> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].startsWith("--") && i + 1 == args.length)
+                throw new IllegalArgumentException("Missing value of " + args[i] + ". " + USAGE);
+            if (args[i].equals("--dictionary"))
+                dictionaryFile = args[++i];
+            else if (args[i].equals("--output"))
+                output = args[++i];
+            else if (args[i].equals("--threads"))
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            else if (args[i].equals("--chunk"))
+                chunkSize = Math.max(1, Long.parseLong(args[++i])) * 1024L;
+            else if (args[i].equals("--min-length"))
+                minLength = Integer.parseInt(args[++i]);
+            else
+                inputs.add(Paths.get(args[i]));
+        }
+
+        final long start = System.nanoTime();
+        final CompoundDictionary dictionary = dictionaryFile == null
+            ? CompoundDictionary.acquire(GermanCompoundSplitter.DICTIONARY_FILE)
+            : CompoundDictionary.acquire(Paths.get(dictionaryFile));
+        try
+        {
+            final Map<String, LongAdder> counts = countTokens(inputs, chunkSize, threads);
+            final long counted = System.nanoTime();
+
+            final List<Map.Entry<String, LongAdder>> tokens = new ArrayList<>(counts.entrySet());
+            tokens.sort(Comparator.comparingLong((Map.Entry<String, LongAdder> e) -> e.getValue().sum())
+                .reversed().thenComparing(Map.Entry::getKey));
+            final List<String> terms = new ArrayList<>();
+            for (Map.Entry<String, LongAdder> token : tokens)
+            {
+                if (token.getKey().length() >= minLength)
+                    terms.add(token.getKey());
+            }
+
+            final GermanCompoundSplitter splitter = new GermanCompoundSplitter(dictionary);
+            final ForkJoinPool pool = new ForkJoinPool(threads);
+            final List<List<ArrayList<CharSequence>>> decompositions;
+            try
+            {
+                decompositions = splitter.splitAll(terms, pool);
+            }
+            finally
+            {
+                pool.shutdown();
+            }
+            final long split = System.nanoTime();
+
+            final Stats stats = write(Paths.get(output), tokens, minLength, decompositions);
+            System.out.println(String.format("%s output: %s, tokens: %d, distinct: %d, split: %d, "
+                + "compounds: %d (%.1f%% of tokens), count time: %d ms, split time: %d ms, total time: %d ms",
+                clsName, output, stats.tokens, tokens.size(), terms.size(), stats.compounds,
+                100.0 * stats.compoundTokens / Math.max(1, stats.tokens), (counted - start) / 1000000,
+                (split - counted) / 1000000, (System.nanoTime() - start) / 1000000));
+            System.out.println(String.format("%s limits: %s", clsName, splitter.getLimits()));
+        }
+        finally
+        {
+            dictionary.close();
+        }
+    }
+
+    /**
+     * Count the tokens of all inputs, one task per chunk.
+     */
+    static Map<String, LongAdder> countTokens(List<Path> inputs, long chunkSize, int threads)
+        throws Exception
+    {
+        final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Path input : inputs)
+            {
+                try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ))
+                {
+                    final long size = channel.size();
+                    for (long from = 0, to; from < size; from = to)
+                    {
+                        to = lineEnd(channel, Math.min(size, from + chunkSize), size);
+                        final long position = from;
+                        final long length = to - from;
+                        futures.add(executor.submit(() -> {
+                            countChunk(input, position, length, counts);
+                            return null;
+                        }));
+                    }
+                }
+            }
+            for (Future<?> future : futures)
+            {
+                future.get();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        return counts;
+    }
+
+    /**
+     * The position after the line break at or after the given position, or the end of the file.
+     */
+    private static long lineEnd(FileChannel channel, long position, long size) throws IOException
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate(8192);
+        while (position < size)
+        {
+            buffer.clear();
+            final int read = channel.read(buffer, position);
+            if (read < 0)
+                break;
+            for (int i = 0; i < read; i++)
+            {
+                if (buffer.get(i) == '\n')
+                    return position + i + 1;
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private static void countChunk(Path input, long position, long length, Map<String, LongAdder> counts)
+        throws IOException
+    {
+        final CharBuffer chars;
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ))
+        {
+            chars = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                .decode(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+        }
+        catch (CharacterCodingException e)
+        {
+            throw new RuntimeException("Failed to decode " + input + " at " + position, e);
+        }
+
+        final CharArrayMap<long []> local = new CharArrayMap<>(1024, false);
+        final char [] buffer = chars.array();
+        final int end = chars.arrayOffset() + chars.limit();
+        int tokenStart = -1;
+        for (int i = chars.arrayOffset(); i < end;)
+        {
+            final int cp = Character.codePointAt(buffer, i, end);
+            if (Character.isLetter(cp))
+            {
+                if (tokenStart < 0)
+                    tokenStart = i;
+            }
+            else if (tokenStart >= 0)
+            {
+                count(local, buffer, tokenStart, i - tokenStart);
+                tokenStart = -1;
+            }
+            i += Character.charCount(cp);
+        }
+        if (tokenStart >= 0)
+            count(local, buffer, tokenStart, end - tokenStart);
+
+        final CharArrayMap<long []>.EntryIterator entries = local.entrySet().iterator();
+        while (entries.hasNext())
+        {
+            final String token = entries.nextKeyString();
+            counts.computeIfAbsent(token, key -> new LongAdder()).add(entries.currentValue()[0]);
+        }
+    }
+
+    private static void count(CharArrayMap<long []> counts, char [] buffer, int offset, int length)
+    {
+        final long [] count = counts.get(buffer, offset, length);
+        if (count != null)
+            count[0]++;
+        else
+            counts.put(new String(buffer, offset, length), new long [] {1});
+    }
+
+    private static final class Stats
+    {
+        long tokens;
+        long compounds;
+        long compoundTokens;
+    }
+
+    /**
+     * Write a line per token, tokens shorter than minLength have no decompositions.
+     */
+    private static Stats write(Path output, List<Map.Entry<String, LongAdder>> tokens, int minLength,
+        List<List<ArrayList<CharSequence>>> decompositions) throws IOException
+    {
+        final Stats stats = new Stats();
+        final StringBuilder line = new StringBuilder();
+        try (BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8))
+        {
+            int split = 0;
+            for (Map.Entry<String, LongAdder> token : tokens)
+            {
+                final long count = token.getValue().sum();
+                stats.tokens += count;
+                line.setLength(0);
+                line.append(token.getKey()).append('\t').append(count).append('\t');
+                if (token.getKey().length() >= minLength)
+                {
+                    final List<ArrayList<CharSequence>> sequences = decompositions.get(split++);
+                    if (!sequences.isEmpty())
+                    {
+                        stats.compounds++;
+                        stats.compoundTokens += count;
+                    }
+                    for (int d = 0; d < sequences.size(); d++)
+                    {
+                        if (d > 0)
+                            line.append('|');
+                        final List<CharSequence> parts = sequences.get(d);
+                        for (int p = 0; p < parts.size(); p++)
+                        {
+                            if (p > 0)
+                                line.append('+');
+                            line.append(parts.get(p));
+                        }
+                    }
+                }
+                writer.append(line).append('\n');
+            }
+        }
+        return stats;
+    }
+}
@@ -1,26 +1,21 @@
 package org.apache.lucene.analysis.de.compounds;
 
 import java.io.*;
-import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collector;
 
-import org.apache.lucene.store.InputStreamDataInput;
 import org.apache.lucene.util.IntsRef;
 import org.apache.lucene.util.IntsRefBuilder;
 import org.apache.lucene.util.UnicodeUtil;
-import org.apache.lucene.util.fst.*;
-import org.apache.lucene.util.fst.FST.BytesReader;
-import org.apache.lucene.util.fst.FST.INPUT_TYPE;
-import org.apache.lucene.util.fst.FSTCompiler;
-import org.apache.lucene.store.DataInput;
-import org.apache.lucene.store.ByteArrayDataInput;
 import org.apache.lucene.util.fst.FST;
-import org.apache.lucene.util.fst.NoOutputs;
-import java.net.URL;
+import org.apache.lucene.util.fst.FST.BytesReader;
 
 /**
  * Simple greedy compound splitter for German. 
- * This class has been made thread safe.
+ * This class is thread safe: it only references the immutable {@link CompoundDictionary}, all
+ * traversal state is kept in a {@link SplitContext} per call (or per thread), so split can be
+ * called concurrently without locking.
  */
 public class GermanCompoundSplitter
 {
@@ -35,20 +30,65 @@ public class GermanCompoundSplitter
      * http://www.canoo.net/services/WordformationRules/Komposition/N-Comp/Adj+N/Komp+N.html?MenuId=WordFormation115012
      */
     
-    static final String FST_WORDS_FILE = "words.fst";
+    static final String DICTIONARY_FILE = "words.dict";
+
+    /**
+     * Shared, immutable dictionary with the surface forms and glue morphemes FSTs.
+     */
+    private final CompoundDictionary dictionary;
 
     /**
      * A static FSA with inflected and base surface forms from Morphy.
-     * 
-     * @see "http://www.wolfganglezius.de/doku.php?id=cl:surfaceForms"
      */
-    private FST<Object> surfaceForms;
+    private final FST<Object> surfaceForms;
+
+    /**
+     * Whether word ends are final states of {@link #surfaceForms} ({@link CompoundDictionary.Format#REVERSED})
+     * rather than arcs labeled {@link #RTL_SYMBOL}.
+     */
+    private final boolean finalStateWords;
+
+    /**
+     * Whether {@link #surfaceForms} has word weights as outputs.
+     */
+    private final boolean weighted;
+
+    /**
+     * A static FSA with glue glueMorphemes, <code>null</code> if they are merged into
+     * {@link #surfaceForms} ({@link CompoundDictionary.Format#MERGED}).
+     */
+    private final FST<Object> glueMorphemes;
 
     /**
-     * A static FSA with glue glueMorphemes. This could be merged into a single FSA
-     * together with {@link #surfaceForms}, but I leave it separate for now.
+     * Optional filter rejecting terms without decompositions before the FSTs are walked.
      */
-    private FST<Object> glueMorphemes;
+    private final CompoundPrefilter prefilter;
+
+    /**
+     * Optional precomputed decompositions of frequent words, only used with the default step and
+     * arc limits they were computed with.
+     */
+    private final DecompositionTable table;
+
+    /**
+     * Optional compound prefixes, detached before the remainder of a term is searched.
+     */
+    private final CompoundPrefixes prefixes;
+
+    /**
+     * Optional cache of decompositions, shared by all splitters using the same dictionary.
+     */
+    private final DecompositionCache cache;
+
+    /**
+     * Work limits per token, shared with the filters using this splitter.
+     */
+    private final SplitLimits limits;
+
+    /**
+     * Counters of the dictionary, see {@link CompoundDictionary#getMetrics()}.
+     */
+    private final CompoundMetrics metrics;
 
     /**
      * left-to-right word encoding symbol (FST).
@@ -61,24 +101,90 @@ public class GermanCompoundSplitter
     static final char RTL_SYMBOL = '<';
 
     /**
-     * Constructor, original implementation makes the FST's static, and references them from instance
-     * members. We want a thread-safe implementation per instance
+     * Glue morpheme end symbol (FST), see {@link CompoundDictionary.Format#MERGED}.
+     */
+    static final char GLUE_SYMBOL = '+';
+
+    /**
+     * Create a splitter backed by the bundled dictionary, which is loaded once per JVM and shared
+     * by all splitters.
      */
     public GermanCompoundSplitter() {
-        try
-        {
-            surfaceForms = this.readMorphyFST();
-            glueMorphemes = this.createMorphemesFST();
-        }
-        catch (IOException e)
-        {
-            throw new RuntimeException("Failed to initialize FST data structures.", e);
-        }
+        this(CompoundDictionary.getDefault());
+    }
+
+    /**
+     * Create a splitter backed by the given dictionary.  The dictionary is not owned by the
+     * splitter, the caller remains responsible for closing it.
+     *
+     * @param dictionary Shared dictionary, see {@link CompoundDictionary#acquire(String)}.
+     */
+    public GermanCompoundSplitter(CompoundDictionary dictionary) {
+        this(dictionary, null);
+    }
+
+    /**
+     * Create a splitter backed by the given dictionary, consulting and filling the given cache.
+     *
+     * @param dictionary Shared dictionary, see {@link CompoundDictionary#acquire(String)}.
+     * @param cache Decomposition cache, see {@link CompoundDictionary#getCache(long)}, may be
+     *          <code>null</code>.
+     */
+    public GermanCompoundSplitter(CompoundDictionary dictionary, DecompositionCache cache) {
+        this(dictionary, cache, new SplitLimits());
+    }
+
+    /**
+     * Create a splitter backed by the given dictionary and cache, bounding the work per token.
+     *
+     * @param dictionary Shared dictionary, see {@link CompoundDictionary#acquire(String)}.
+     * @param cache Decomposition cache, see {@link CompoundDictionary#getCache(long)}, may be
+     *          <code>null</code>.
+     * @param limits Work limits per token, also recording how often they are hit.
+     */
+    public GermanCompoundSplitter(CompoundDictionary dictionary, DecompositionCache cache, SplitLimits limits) {
+        this.dictionary = Objects.requireNonNull(dictionary, "dictionary");
+        this.cache = cache;
+        this.limits = Objects.requireNonNull(limits, "limits");
+        this.metrics = dictionary.getMetrics();
+        this.surfaceForms = dictionary.getSurfaceForms();
+        this.finalStateWords = dictionary.getFormat() != CompoundDictionary.Format.BIDIRECTIONAL;
+        this.weighted = dictionary.isWeighted();
+        this.glueMorphemes = dictionary.getGlueMorphemes();
+        this.prefilter = dictionary.getPrefilter();
+        this.prefixes = dictionary.getPrefixes();
+        this.table = limits.getMaxSteps() == 0 && limits.getMaxArcs() == 0
+            ? dictionary.getDecompositionTable() : null;
+    }
+
+    /**
+     * The dictionary this splitter was created with.
+     */
+    public CompoundDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * The decomposition cache of this splitter, or <code>null</code>.
+     */
+    public DecompositionCache getCache() {
+        return cache;
+    }
+
+    /**
+     * The work limits of this splitter and their counters.
+     */
+    public SplitLimits getLimits() {
+        return limits;
     }
 
     /**
      * Category for a given chunk of a compound.
+     *
+     * @deprecated Only used by {@link DecompositionListener}, see
+     *          {@link #split(CharSequence, DecompositionListener)}.
      */
+    @Deprecated
     public static enum ChunkType
     {
         GLUE_MORPHEME, WORD,
@@ -86,15 +192,25 @@ public class GermanCompoundSplitter
 
     /**
      * A slice of a compound word.
+     *
+     * @deprecated Only used by {@link DecompositionListener}, see
+     *          {@link #split(CharSequence, DecompositionListener)}.
      */
-    public final class Chunk
+    @Deprecated
+    public static final class Chunk
     {
         public final int start;
         public final int end;
         public final ChunkType type;
 
-        Chunk(int start, int end, ChunkType type)
+        /**
+         * Full unicode points of the (reversed) input sequence this chunk refers to.
+         */
+        private final IntsRef utf32;
+
+        Chunk(IntsRef utf32, int start, int end, ChunkType type)
         {
+            this.utf32 = utf32;
             this.start = start;
             this.end = end;
             this.type = type;
@@ -104,9 +220,9 @@ public class GermanCompoundSplitter
         public String toString()
         {
             final StringBuilder b = new StringBuilder(
-                UnicodeUtil.newString(utf32.ints, start, end - start)).reverse();
+                UnicodeUtil.newString(utf32.ints, utf32.offset + start, end - start)).reverse();
 
-            if (type == ChunkType.GLUE_MORPHEME) 
+            if (type == ChunkType.GLUE_MORPHEME)
                 b.append("<G>");
 
             return b.toString();
@@ -115,7 +231,11 @@ public class GermanCompoundSplitter
 
     /**
      * A decomposition listener accepts potential decompositions of a word.
+     *
+     * @deprecated Allocates per decomposition, use {@link #split(char[], int, int, SplitContext)}
+     *          and read the split points from the context.
      */
+    @Deprecated
     public static interface DecompositionListener
     {
         /**
@@ -126,27 +246,45 @@ public class GermanCompoundSplitter
     }
 
     /**
-     * Full unicode points representation of the input compound.
-     */
-    private IntsRef utf32;
-    private IntsRefBuilder utf32Builder = new IntsRefBuilder();
-
-    /**
-     * This array stores the minimum number of decomposition words during traversals to
-     * avoid splitting a larger word into smaller chunks.
+     * Report the decompositions of a word to a listener, in the order of
+     * {@link #split(CharSequence)}.  As before the lock-free search, the chunks of a
+     * decomposition are offsets into the lowercased and reversed code points of the word, from its
+     * end: {@link ArrayDeque#descendingIterator()} yields them in reading order.  Glue morphemes
+     * are reported as chunks of their own, a word covering the whole input is not reported.
+     *
+     * @deprecated Adapter over {@link #split(char[], int, int, SplitContext)}, which reports the
+     *          same decompositions as split points without allocating.
      */
-    private IntsRefBuilder maxPathsBuilder = new IntsRefBuilder();
+    @Deprecated
+    public void split(CharSequence word, DecompositionListener listener)
+    {
+        final char [] chars = word.toString().toCharArray();
+        final SplitContext context = new SplitContext();
+        final int count = split(chars, 0, chars.length, context);
 
-    /**
-     * Reusable array of decomposition chunks.
-     */
-    private final ArrayDeque<Chunk> chunks = new ArrayDeque<Chunk>();
+        final char [] folded = new char [chars.length];
+        foldCase(chars, 0, chars.length, folded, 0);
+        final IntsRef utf32 = UTF16ToUTF32(new StringBuilder(chars.length).append(folded).reverse(),
+            new IntsRefBuilder()).get();
+        final int codePoints = utf32.length;
+        for (int d = 0; d < count; d++)
+        {
+            final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+            for (int p = context.partCount(d); --p >= 0;)
+            {
+                final int start = Character.codePointCount(chars, 0, context.partStart(d, p));
+                final int end = Character.codePointCount(chars, 0, context.partEnd(d, p));
+                chunks.addLast(new Chunk(utf32, codePoints - end, codePoints - start, ChunkType.WORD));
+                // the glue morpheme joining this part to the previous one.
+                final int boundary = Character.codePointCount(chars, 0, context.partBoundary(d, p));
+                if (boundary < start)
+                    chunks.addLast(new Chunk(utf32, codePoints - start, codePoints - boundary,
+                        ChunkType.GLUE_MORPHEME));
+            }
+            listener.decomposition(utf32, chunks);
+        }
+    }
 
-    /**
-     * A decomposition listener accepts potential decompositions of a word.
-     */
-    private DecompositionListener listener;
-    
     /**
      * Splits the input sequence of characters into separate words if this sequence is
      * potentially a compound word.
@@ -160,260 +298,754 @@ public class GermanCompoundSplitter
      *          };
      * </code>
      * 
+     * This is a convenience wrapper around {@link #split(char[], int, int, SplitContext)} which
+     * allocates the returned lists, hot paths should use the split points API directly.
+     * 
      * @param word The word to be split.  (note that CharSequence is an interface that String implements)
-     * @return Returns <code>null</code> if this word is not recognized at all.
+     * @return Returns an empty list if this word is not recognized at all.
      *          A String (CharacterSequence) is returned for each part of the word decomposition.
      *          Each string is contained within an ArrayList, which is contained within another 
      *          List.
      */
-    public synchronized List<ArrayList<CharSequence>> split(CharSequence word)
+    public List<ArrayList<CharSequence>> split(CharSequence word)
     {
+        final char [] chars = word.toString().toCharArray();
+        final SplitContext context = new SplitContext();
+        split(chars, 0, chars.length, context);
+        return decompositions(chars, 0, context);
+    }
+
+    /**
+     * Copy the decompositions held by a context into lists of lowercased parts, as returned by
+     * {@link #split(CharSequence)}.
+     *
+     * @param buffer The buffer the context's term was split from.
+     * @param offset Offset of the term in the buffer.
+     */
+    static List<ArrayList<CharSequence>> decompositions(char [] buffer, int offset, SplitContext context)
+    {
+        /*
+            a list of lists containing decompoundings, typically the top-level list will only
+            contain a single element.  When there are multiple interpretations of the word 
+            decomposition then all possibilities will be represented.
+        */
+        final int count = context.count();
+        List<ArrayList<CharSequence>> wordSequences = new ArrayList<>(count);
+        for (int d = 0; d < count; d++)
+        {
+            final int parts = context.partCount(d);
+            ArrayList<CharSequence> wordList = new ArrayList<>(parts);
+            for (int p = 0; p < parts; p++)
+            {
+                final int start = offset + context.partStart(d, p);
+                final int end = offset + context.partEnd(d, p);
+                final char [] part = new char [end - start];
+                foldCase(buffer, start, end, part, 0);
+                wordList.add(new String(part));
+            }
+            wordSequences.add(wordList);
+        }
+        return wordSequences;
+    }
+
+    /**
+     * Splits a term into its decompositions, writing them as split points into the given
+     * context.  Decompositions are ordered like {@link #split(CharSequence)}: the sequence with
+     * the greatest number of parts first.  The context should be reused for every term of a
+     * thread, with a warm context this method does not allocate.
+     * 
+     * The term is read in place: the FSTs are walked backwards over the buffer, case is folded
+     * per code point on the fly ({@link Character#toLowerCase(int)}, independently of the default
+     * locale).  The buffer must not be modified during the call.
+     * 
+     * If the dictionary has {@link CompoundPrefixes} and the term is no dictionary word, its
+     * longest prefix is detached as well: every decomposition of the remainder, and the remainder
+     * as a whole if it is a word, follows the prefix, in addition to the decompositions of the
+     * whole term.  Prefixes of a remainder that is no word are detached in turn.  All of this is
+     * charged to the work budget of the term (see {@link SplitLimits}).
+     * 
+     * @param buffer Chars of the term (for example {@code CharTermAttribute.buffer()}).
+     * @param offset Offset of the term in the buffer.
+     * @param length Length of the term in chars.
+     * @param context Per thread context receiving the split points.
+     * @return The number of decompositions, {@link SplitContext#count()}.
+     */
+    public int split(char [] buffer, int offset, int length, SplitContext context)
+    {
+        final long start = System.nanoTime();
+        return record(search(buffer, offset, length, context), context, start);
+    }
+
+    /**
+     * All decompositions of a term, see {@link #split(char[], int, int, SplitContext)}.
+     */
+    private int search(char [] buffer, int offset, int length, SplitContext context)
+    {
+        context.reset(buffer, offset, length);
+        context.steps = limits.steps(length);
+        context.arcs = context.arcBudget = limits.arcs();
+        
         try
         {
-            // Lowercase and reverse the input.
-            final String wordLower = word.toString().toLowerCase();
-            final String wordReversed = new StringBuffer(word).reverse().toString().toLowerCase();
-            this.utf32 = UTF16ToUTF32(wordReversed, utf32Builder).get();
+            // most terms are not compounds, reject them before the cache is consulted.  Bound
+            // stems (Abschlepp-, Heiz-) are no dictionary words, terms starting with one are
+            // searched for their prefix decompositions anyway.  They are found with a forward
+            // traversal, which stops after an arc or two for most terms.
+            final boolean compound = prefilter == null || prefilter.mayDecompose(buffer, offset, length);
+            final int prefix = prefixes == null ? 0 : prefixes.longestPrefix(buffer, offset, length, context);
+            if (!compound && prefix == 0)
+            {
+                return 0;
+            }
+            
+            // frequent words are looked up in a single pass.
+            if (table != null && table.get(buffer, offset, length, context))
+            {
+                return context.count();
+            }
+            if (cache != null && cache.get(context))
+            {
+                return context.count();
+            }
             
-            /*
-                a list of lists containing decompoundings, typically the top-level list will only
-                contain a single element.  When there are multiple interpretations of the word 
-                decomposition then all possibilities will be represented.
+            bindReaders(context);
             
-                The structure of wordSequences typically looks like:
-                
-                word = "Finanzgrundsatzangelegenheiten";
-                wordSequences = {
-                    {"finanz", "grundsatz", "angelegenheiten"},
-                    {"finanzgrundsatz", "angelegenheiten"}
-                };
-            */
-            List<ArrayList<CharSequence>> wordSequences = new ArrayList<>(2);
-
-            // Anonymous class for DecompisitionListener interface.
-            this.listener = new DecompositionListener()
+            // build the lattice from the end of the term, then enumerate all decompositions
+            // along it, every complete match is recorded by the context.
+            if (length > 0)
             {
-                @Override
-                public void decomposition(IntsRef utf32, ArrayDeque<Chunk> chunks)
-                {
-                    // multiple decompositions can be found, which is why we have a list of lists.
-                    ArrayList<CharSequence> wordList = new ArrayList<>(3);
-                    
-                    // each chunk is a word-part.
-                    Iterator<Chunk> i = chunks.descendingIterator();
-                    while (i.hasNext())
-                    {
-                        Chunk chunk = i.next();
-                        if (chunk.type == ChunkType.WORD)
-                        {
-                            final String wordChunk = chunk.toString();
-                            // skip the word if its identical to the input.
-                            if(wordChunk.equals(wordLower)) {
-                                continue;
-                            }
-                            wordList.add(wordChunk);
-                        }
-                    }
-                    // don't add empty lists
-                    if(wordList.isEmpty()) 
-                        return;
-                    
-                    // Add the word sub-parts list to wordSequences
-                    wordSequences.add(wordList);
-                }
-            };
-
-            maxPathsBuilder.clear();
-            maxPathsBuilder.grow(utf32.length + 1);
-            Arrays.fill(maxPathsBuilder.ints(), 0, utf32.length + 1, Integer.MAX_VALUE);
+                walkLattice(context, length);
+                if (compound && completeLattice(context, 0, length))
+                    enumerate(context, 0, length);
+                if (prefix > 0)
+                    detachPrefixes(context, prefix, length);
+            }
+        }
+        catch (IOException e)
+        {
+            // Shouldn't happen, but just in case.
+            throw new RuntimeException(e);
+        }
+        if (context.truncated)
+            truncated(context);
+        
+        // sort the word sequences by the number of terms in each sequence, the sequence
+        // with the greatest number of terms will be first.
+        context.sort();
+        
+        // the cache is shared by splitters with different limits, only complete results are kept.
+        if (cache != null && !context.truncated)
+            cache.put(context);
+        return context.count();
+    }
 
-            // matches the sub-words, triggers the decompisition (this.listener) above.
-            matchWord(utf32, utf32.offset);
+    /**
+     * Splits a term into its <code>k</code> best decompositions, writing them as split points into
+     * the given context.  Decompositions are ordered by cost, cheapest first: the sum of the
+     * {@link CompoundDictionary#getWordCost(long) costs} of their parts, the negative log
+     * probability of the parts under the word frequencies of a weighted dictionary.  With an
+     * unweighted dictionary every part costs the same, decompositions with fewer parts come first.
+     * 
+     * Decompositions are not enumerated: a k-best Viterbi pass over the lattice keeps only the k
+     * cheapest completions of the term from every offset, more expensive branches are pruned.  Its
+     * work is bounded by O(n * edges * k), so no step budget applies.  Results are not cached.
+     * 
+     * @param buffer Chars of the term.
+     * @param offset Offset of the term in the buffer.
+     * @param length Length of the term in chars.
+     * @param k Maximum number of decompositions.
+     * @param context Per thread context receiving the split points.
+     * @return The number of decompositions, {@link SplitContext#count()}.
+     */
+    public int splitBest(char [] buffer, int offset, int length, int k, SplitContext context)
+    {
+        if (k < 1)
+        {
+            throw new IllegalArgumentException("k must be positive: " + k);
+        }
+        final long start = System.nanoTime();
+        return record(searchBest(buffer, offset, length, k, context), context, start);
+    }
 
-            // sort the word sequences by the number of terms in each sequence, the sequence
-            // with the greatest number of terms will be first in the returned list.
-            sortListBySizeDescending(wordSequences);
-            
-            return wordSequences;
+    /**
+     * The k best decompositions of a term, see
+     * {@link #splitBest(char[], int, int, int, SplitContext)}.
+     */
+    private int searchBest(char [] buffer, int offset, int length, int k, SplitContext context)
+    {
+        context.reset(buffer, offset, length);
+        if (prefilter != null && !prefilter.mayDecompose(buffer, offset, length))
+        {
+            return 0;
+        }
+        
+        try
+        {
+            bindReaders(context);
+            context.arcs = context.arcBudget = limits.arcs();
+            context.resetBest(k);
+            if (length > 0)
+            {
+                walkLattice(context, length);
+                bestLists(context, length);
+                final int list = 2 * length;
+                for (int r = 0; r < context.bestCount[list]; r++)
+                {
+                    context.emitBest(list * k + r);
+                }
+            }
         }
         catch (IOException e)
         {
             // Shouldn't happen, but just in case.
             throw new RuntimeException(e);
         }
+        if (context.truncated)
+            truncated(context);
+        return context.count();
     }
 
     /**
-     * Consume a word, then recurse into glue morphemes/ further words.
+     * Detach prefixes from the start of the term, one after the other, and add the decompositions
+     * of each remainder after them.  The remainders are suffixes of the term, their lattices are
+     * part of the lattice of the term, which is walked already.  Nothing is detached from a word,
+     * the term or a remainder.  Every prefix costs a step of the budget of the term.
+     *
+     * @param prefix Length of the longest prefix of the term.
      */
-    private void matchWord(IntsRef utf32, int offset) throws IOException
+    private void detachPrefixes(SplitContext context, int prefix, int length) throws IOException
     {
-        FST.Arc<Object> arc = surfaceForms.getFirstArc(new FST.Arc<>());
-        FST.Arc<Object> scratch = new FST.Arc<>();
-        List<Chunk> wordsFromHere = new ArrayList<>();
+        int from = 0;
+        while (prefix > 0 && !isWord(context, from, length))
+        {
+            if (--context.steps < 0)
+            {
+                context.truncated = true;
+                break;
+            }
+            from += prefix;
+            context.pushPrefix(from);
+            if (completeLattice(context, from, length))
+                enumerate(context, from, length);
+            if (context.steps < 0)
+                break;
+            prefix = prefixes.longestPrefix(context.buffer, context.offset + from, length - from, context);
+        }
+        context.prefixCount = 0;
+    }
 
-        BytesReader br = surfaceForms.getBytesReader();
-        for (int i = offset; i < utf32.length; i++)
+    /**
+     * Whether the chars from an offset to the end of the term are a dictionary word: the lattice
+     * has a word edge between them.
+     */
+    private static boolean isWord(SplitContext context, int from, int length)
+    {
+        for (int j = context.wordFirst[length], end = j + context.wordCount[length]; j < end; j++)
         {
-            int chr = utf32.ints[i];
+            if (context.edgePool[j] == from)
+                return true;
+        }
+        return false;
+    }
 
-            arc = surfaceForms.findTargetArc(chr, arc, arc, br);
-            if (arc == null) break;
+    /**
+     * Report a split to the dictionary metrics.
+     */
+    private int record(int count, SplitContext context, long start)
+    {
+        metrics.split(context.termLength, count, context.arcBudget - context.arcs,
+            System.nanoTime() - start);
+        return count;
+    }
+
+    /**
+     * Count the limit a term hit and apply the fallback.
+     */
+    private void truncated(SplitContext context)
+    {
+        if (context.arcs < 0)
+            limits.arcLimitHit();
+        else
+            limits.stepLimitHit();
+        if (limits.getFallback() == SplitLimits.Fallback.PASS_THROUGH)
+            context.clearDecompositions();
+    }
+
+    /**
+     * The <code>k</code> best decompositions of a word, see
+     * {@link #splitBest(char[], int, int, int, SplitContext)}.
+     */
+    public List<ArrayList<CharSequence>> splitBest(CharSequence word, int k)
+    {
+        final char [] chars = word.toString().toCharArray();
+        final SplitContext context = new SplitContext();
+        splitBest(chars, 0, chars.length, k, context);
+        return decompositions(chars, 0, context);
+    }
+
+    /**
+     * Split many terms in parallel in the common fork/join pool, see
+     * {@link #splitAll(Collection, ForkJoinPool)}.
+     */
+    public List<List<ArrayList<CharSequence>>> splitAll(Collection<? extends CharSequence> terms)
+    {
+        return splitAll(terms, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Split many terms in parallel in the given fork/join pool.  The terms are split in ranges of
+     * {@value BatchSplitter#LEAF_SIZE}, each with its own {@link SplitContext}, over the shared
+     * dictionary.
+     *
+     * @return The decompositions of every term, as returned by {@link #split(CharSequence)}, in
+     *          the iteration order of the terms.
+     */
+    public List<List<ArrayList<CharSequence>>> splitAll(Collection<? extends CharSequence> terms,
+        ForkJoinPool pool)
+    {
+        return BatchSplitter.splitAll(this, terms.toArray(new CharSequence [0]), pool);
+    }
+
+    /**
+     * A spliterator over the terms of the given spliterator and their decompositions, for
+     * {@link java.util.stream.StreamSupport#stream(Spliterator, boolean) streams}.  It splits like
+     * the given spliterator does, each part reusing its own {@link SplitContext}, and keeps its
+     * order:
+     *  <code>
+     *          StreamSupport.stream(splitter.spliterator(terms.spliterator()), true)
+     *              .forEach(e -> write(e.getKey(), e.getValue()));
+     * </code>
+     */
+    public <T extends CharSequence> Spliterator<Map.Entry<T, List<ArrayList<CharSequence>>>> spliterator(
+        Spliterator<T> terms)
+    {
+        return new BatchSplitter.DecompoundingSpliterator<>(this, terms);
+    }
+
+    /**
+     * A collector of the distinct terms of a stream and their decompositions, in encounter order.
+     * Every term is split once per container, so once per thread at most in parallel streams:
+     *  <code>
+     *          Map&lt;String, List&lt;ArrayList&lt;CharSequence&gt;&gt;&gt; vocabulary =
+     *              queryTerms.parallelStream().collect(splitter.toDecompositions());
+     * </code>
+     */
+    public Collector<CharSequence, ?, Map<String, List<ArrayList<CharSequence>>>> toDecompositions()
+    {
+        return BatchSplitter.collector(this);
+    }
+
+    private void bindReaders(SplitContext context)
+    {
+        // variants of a dictionary share its surface forms, not its glue morphemes.
+        if (context.surfaceForms != surfaceForms || context.glueMorphemes != glueMorphemes)
+        {
+            context.surfaceForms = surfaceForms;
+            context.glueMorphemes = glueMorphemes;
+            context.wordsReader = surfaceForms.getBytesReader();
+            context.glueReader = glueMorphemes == null ? null : glueMorphemes.getBytesReader();
+        }
+    }
+
+    /**
+     * Copy a slice of a term lowercased per code point ({@link Character#toLowerCase(int)}).  A
+     * code point whose lowercase form needs a different number of chars is copied unchanged, so
+     * the copy is exactly as long as the slice.
+     *
+     * @param dest Destination, with room for <code>end - start</code> chars at <code>destOffset</code>.
+     */
+    static void foldCase(char [] buffer, int start, int end, char [] dest, int destOffset)
+    {
+        for (int i = start; i < end;)
+        {
+            final int cp = Character.codePointAt(buffer, i, end);
+            final int chars = Character.charCount(cp);
+            final int lower = Character.toLowerCase(cp);
+            Character.toChars(Character.charCount(lower) == chars ? lower : cp, dest, destOffset + i - start);
+            i += chars;
+        }
+    }
+
+    /*
+     * The search runs on a lattice over the char offsets of the term: for every offset the starts
+     * of all dictionary words and glue morphemes ending there.  The dictionary holds words
+     * reversed, so each offset is walked backwards through the buffer in the FSTs, at most once,
+     * and only if it can be reached from the end of the term (so words without any match are
+     * rejected after a single walk), which bounds FST work by O(n * longest word).  Reachability
+     * of the start of the term is then computed per offset, left to right, so the enumeration only
+     * ever follows edges that can still complete a decomposition.  The enumeration itself visits
+     * edges in the same order as the original recursive search, including its maxPaths pruning,
+     * and therefore yields identical decompositions; it is capped by a polynomial step budget (see
+     * maxSteps()), FST work optionally by an arc budget (see SplitLimits).  No pass recurses, the
+     * depth of the stack does not grow with the length of the term.
+     */
 
-            if (surfaceForms.findTargetArc(RTL_SYMBOL, arc, scratch, br) != null)
+    /**
+     * Minimum enumeration budget per term, in chunk expansions.
+     */
+    static final int MIN_STEPS = 256;
+
+    /**
+     * Enumeration budget per squared char of the term, in chunk expansions.
+     */
+    static final int STEPS_PER_SQUARED_LENGTH = 4;
+
+    static int maxSteps(int length)
+    {
+        return (int) Math.min(Integer.MAX_VALUE,
+            MIN_STEPS + STEPS_PER_SQUARED_LENGTH * (long) length * length);
+    }
+
+    /**
+     * Walk the offsets that can be reached from the end of the term, right to left.  The end of
+     * the term is reached by a word, the start of a word edge is reached by a word or a glue
+     * morpheme, the start of a glue edge by a word.  Offsets that are not reached are not walked.
+     */
+    private void walkLattice(SplitContext context, int length) throws IOException
+    {
+        final byte [] reach = context.reach;
+        reach[length] = SplitContext.REACH_WORD;
+        for (int offset = length; offset > 0; offset--)
+        {
+            final byte reached = reach[offset];
+            if (reached == 0)
+                continue;
+            final int first = walkWords(context, offset);
+            if ((reached & SplitContext.REACH_WORD) != 0)
+            {
+                for (int j = first, end = first + context.wordCount[offset]; j < end; j++)
+                {
+                    reach[context.edgePool[j]] |= SplitContext.REACH_WORD | SplitContext.REACH_GLUE;
+                }
+            }
+            if ((reached & SplitContext.REACH_GLUE) != 0)
             {
-                Chunk ch = new Chunk(offset, i + 1, ChunkType.WORD);
-                wordsFromHere.add(ch);
+                for (int j = context.glueFirst[offset], end = j + context.glueCount[offset]; j < end; j++)
+                {
+                    reach[context.edgePool[j]] |= SplitContext.REACH_WORD;
+                }
             }
         }
+    }
 
-        int [] maxPaths = maxPathsBuilder.ints();
-        for (int j = wordsFromHere.size(); --j >= 0;)
+    /**
+     * Compute, left to right, whether the start of the term can be reached from every reached
+     * offset ending with a word, or with a glue morpheme (a term never starts with glue).  The
+     * edges of an offset only lead to smaller offsets, which are known by then.
+     *
+     * @param from Offset the decompositions start at, <code>0</code> or the end of the prefixes
+     *          detached from the term.
+     * @return Whether <code>from</code> can be reached from the end of the term.
+     */
+    private static boolean completeLattice(SplitContext context, int from, int length)
+    {
+        final byte [] reach = context.reach;
+        final byte [] canCompleteWord = context.canCompleteWord;
+        final byte [] canCompleteGlue = context.canCompleteGlue;
+        for (int offset = from + 1; offset <= length; offset++)
         {
-            final Chunk ch = wordsFromHere.get(j);
+            final byte reached = reach[offset];
+            if ((reached & SplitContext.REACH_GLUE) != 0)
+            {
+                byte state = SplitContext.NO;
+                for (int j = context.glueFirst[offset], end = j + context.glueCount[offset]; j < end; j++)
+                {
+                    final int start = context.edgePool[j];
+                    if (start > from && canCompleteWord[start] == SplitContext.YES)
+                    {
+                        state = SplitContext.YES;
+                        break;
+                    }
+                }
+                canCompleteGlue[offset] = state;
+            }
+            if ((reached & SplitContext.REACH_WORD) != 0)
+            {
+                byte state = SplitContext.NO;
+                for (int j = context.wordFirst[offset], end = j + context.wordCount[offset]; j < end; j++)
+                {
+                    final int start = context.edgePool[j];
+                    if (start == from || start > from && (canCompleteWord[start] == SplitContext.YES
+                        || canCompleteGlue[start] == SplitContext.YES))
+                    {
+                        state = SplitContext.YES;
+                        break;
+                    }
+                }
+                canCompleteWord[offset] = state;
+            }
+        }
+        return canCompleteWord[length] == SplitContext.YES;
+    }
 
-            if (chunks.size() + 1 > maxPaths[ch.end]) continue;
-            maxPaths[ch.end] = chunks.size() + 1;
+    /**
+     * Enumerate the decompositions of the term, depth first from its end.  Each frame of the
+     * context's stack iterates the word (or glue morpheme) edges ending at its offset and runs on
+     * top of the chunks pushed before it: an accepted word edge pushes its chunk, then a frame for
+     * the glue morphemes and one for the words before it, which runs first, as the no glue branch
+     * did in the original recursive search.
+     *
+     * @param from Offset the decompositions start at, see {@link #completeLattice}.
+     */
+    private static void enumerate(SplitContext context, int from, int length)
+    {
+        final int [] maxPaths = context.maxPaths;
+        Arrays.fill(maxPaths, from, length + 1, Integer.MAX_VALUE);
+        final byte [] canCompleteWord = context.canCompleteWord;
+        final byte [] canCompleteGlue = context.canCompleteGlue;
+        context.frames = 0;
+        context.pushFrame(length, false, 0);
+        while (context.frames > 0)
+        {
+            final int frame = context.frames - 1;
+            final int offset = context.frameOffsets[frame];
+            final int depth = context.frameDepths[frame];
+            // drop the chunks of the frames that finished on top of this one.
+            context.depth = depth;
 
-            chunks.addLast(ch);
-            if (ch.end == utf32.offset + utf32.length)
+            if (context.frameGlue[frame])
             {
-                listener.decomposition(this.utf32, chunks);
+                // consume a glue morpheme, and the next word.
+                final int j = context.frameEdges[frame]++;
+                if (j == context.glueCount[offset])
+                {
+                    context.frames--;
+                    continue;
+                }
+                final int start = context.edgePool[context.glueFirst[offset] + j];
+                if (start <= from || canCompleteWord[start] != SplitContext.YES) continue;
+
+                if (--context.steps < 0)
+                {
+                    context.truncated = true;
+                    return;
+                }
+                context.pushChunk(start, offset, true);
+                context.pushFrame(start, false, depth + 1);
+                continue;
+            }
+
+            // longest word first, as the original recursive search did.
+            final int j = --context.frameEdges[frame];
+            if (j < 0)
+            {
+                context.frames--;
+                continue;
+            }
+            final int start = context.edgePool[context.wordFirst[offset] + j];
+
+            // skip edges after which the term can not be completed.
+            if (start < from) continue;
+            final boolean word = start > from && canCompleteWord[start] == SplitContext.YES;
+            final boolean glue = start > from && canCompleteGlue[start] == SplitContext.YES;
+            if (start > from && !word && !glue) continue;
+
+            if (depth + 1 > maxPaths[start]) continue;
+            maxPaths[start] = depth + 1;
+
+            if (--context.steps < 0)
+            {
+                context.truncated = true;
+                return;
+            }
+
+            context.pushChunk(start, offset, false);
+            if (start == from)
+            {
+                context.emit();
             }
             else
             {
+                // with glue, after the words without glue on top of it.
+                if (glue) context.pushFrame(start, true, depth + 1);
                 // no glue.
-                matchWord(utf32, ch.end);
-                // with glue.
-                matchGlueMorpheme(utf32, ch.end);
+                if (word) context.pushFrame(start, false, depth + 1);
             }
-            chunks.removeLast();
         }
     }
 
     /**
-     * Consume a maximal glue morpheme, if any, and consume the next word.
+     * Compute the best-k lists of completions of the reached offsets, left to right: list
+     * <code>2 * offset</code> ends with a word at the offset, list <code>2 * offset + 1</code>
+     * with a glue morpheme.  The edges of an offset only lead to smaller offsets, whose lists are
+     * complete by then.
      */
-    private void matchGlueMorpheme(IntsRef utf32, final int offset) throws IOException
+    private void bestLists(SplitContext context, int length)
     {
-        FST.Arc<Object> arc = glueMorphemes.getFirstArc(new FST.Arc<Object>());
-        BytesReader br = glueMorphemes.getBytesReader();
-        for (int i = offset; i < utf32.length; i++)
+        final byte [] reach = context.reach;
+        for (int offset = 1; offset <= length; offset++)
         {
-            int chr = utf32.ints[i];
-
-            arc = glueMorphemes.findTargetArc(chr, arc, arc, br);
-            if (arc == null) break;
-
-            if (arc.isFinal())
+            final byte reached = reach[offset];
+            if ((reached & SplitContext.REACH_WORD) != 0)
+            {
+                final int list = 2 * offset;
+                context.bestCount[list] = 0;
+                final int first = context.wordFirst[offset];
+                for (int j = context.wordCount[offset]; --j >= 0;)
+                {
+                    final int start = context.edgePool[first + j];
+                    final long cost = dictionary.getWordCost(context.edgeWeights[first + j]);
+                    if (start == 0)
+                    {
+                        // a single word covering the whole term is not a decomposition.
+                        if (offset != context.termLength)
+                            context.offerBest(list, cost, 0, -1);
+                        continue;
+                    }
+                    offerCompletions(context, list, cost, start, 2 * start);
+                    offerCompletions(context, list, cost, start, 2 * start + 1);
+                }
+            }
+            if ((reached & SplitContext.REACH_GLUE) != 0)
             {
-                Chunk ch = new Chunk(offset, i + 1, ChunkType.GLUE_MORPHEME);
-                chunks.addLast(ch);
-                if (i + 1 < utf32.offset + utf32.length)
+                final int list = 2 * offset + 1;
+                context.bestCount[list] = 0;
+                final int first = context.glueFirst[offset];
+                for (int j = 0, count = context.glueCount[offset]; j < count; j++)
                 {
-                    matchWord(utf32, i + 1);
+                    final int start = context.edgePool[first + j];
+                    // a term never starts with glue, glue morphemes cost nothing.
+                    if (start > 0)
+                        offerCompletions(context, list, 0, start, 2 * start);
                 }
-                chunks.removeLast();
             }
         }
     }
 
     /**
-     * Convert a character sequence <code>s</code> into full unicode codepoints.
+     * Offer a chunk followed by each completion of a list to another list, in order of cost.
      */
-    private IntsRefBuilder UTF16ToUTF32(CharSequence s, IntsRefBuilder builder)
+    private static void offerCompletions(SplitContext context, int list, long cost, int start, int next)
     {
-        builder.clear();
-
-        for (int charIdx = 0, charLimit = s.length(); charIdx < charLimit;)
+        final int base = next * context.bestK;
+        for (int r = 0, count = context.bestCount[next]; r < count; r++)
         {
-            final int u32 = Character.codePointAt(s, charIdx);
-            builder.append(u32);
-            charIdx += Character.charCount(u32);
+            // completions are ordered, once one is rejected so are the others.
+            if (!context.offerBest(list, cost + context.bestCost[base + r], start, base + r))
+                break;
         }
-        return builder;
     }
 
     /**
-     * Load surface forms FST.
+     * Add the lattice edges of an offset: the starts of all words and glue morphemes ending there
+     * (shortest first).  The term is read backwards from the offset, one lowercased code point
+     * per arc.  Every offset is walked only once, in a single traversal if glue morphemes are
+     * merged into the surface forms FST.
+     *
+     * @return The position of the offset's first word edge in the edge pool.
      */
-    private FST<Object> readMorphyFST() {
-        try {
-            InputStream inputStream = getClass().getClassLoader().getResourceAsStream(FST_WORDS_FILE);
-            
-            if (inputStream == null) {
-                throw new IOException("Ressource " + FST_WORDS_FILE + " nicht gefunden");
+    private int walkWords(SplitContext context, int offset) throws IOException
+    {
+        if (context.wordCount[offset] >= 0)
+        {
+            return context.wordFirst[offset];
+        }
+
+        final char [] buffer = context.buffer;
+        final int base = context.offset;
+
+        BytesReader br = context.wordsReader;
+        FST.Arc<Object> arc = surfaceForms.getFirstArc(context.arc);
+        final int first = context.edgePoolSize;
+        long weight = 0;
+        int glue = 0;
+        for (int i = base + offset, n = 0; i > base; n++)
+        {
+            if (--context.arcs < 0)
+            {
+                context.truncated = true;
+                break;
+            }
+            final int cp = Character.codePointBefore(buffer, i, base);
+            i -= Character.charCount(cp);
+            arc = surfaceForms.findTargetArc(Character.toLowerCase(cp), arc, arc, br);
+            if (arc == null) break;
+
+            if (weighted)
+            {
+                weight += ((Long) arc.output()).longValue();
             }
 
-            BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
-            DataInput dataInput = new InputStreamDataInput(bufferedInputStream);
+            if (finalStateWords ? arc.isFinal()
+                : surfaceForms.findTargetArc(RTL_SYMBOL, arc, context.scratch, br) != null)
+            {
+                context.addEdge(i - base,
+                    weighted ? (int) (weight + ((Long) arc.nextFinalOutput()).longValue()) : 0);
+            }
+            // merged glue morphemes are short, only look for their symbol near the offset.
+            if (glueMorphemes == null && n < CompoundDictionary.MAX_GLUE_LENGTH
+                && surfaceForms.findTargetArc(GLUE_SYMBOL, arc, context.scratch, br) != null)
+            {
+                context.glueStarts[glue++] = i - base;
+            }
+        }
+        context.wordFirst[offset] = first;
+        context.wordCount[offset] = context.edgePoolSize - first;
 
-            Outputs<Object> outputs = NoOutputs.getSingleton();
-            FST.FSTMetadata<Object> metadata = FST.readMetadata(dataInput, outputs);
-            
-            return new FST<>(metadata, dataInput);
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
+        context.glueFirst[offset] = context.edgePoolSize;
+        if (glueMorphemes == null)
+        {
+            for (int g = 0; g < glue; g++)
+            {
+                context.addEdge(context.glueStarts[g], 0);
+            }
+            context.glueCount[offset] = glue;
+            return first;
+        }
+
+        br = context.glueReader;
+        arc = glueMorphemes.getFirstArc(context.arc);
+        for (int i = base + offset; i > base;)
+        {
+            if (--context.arcs < 0)
+            {
+                context.truncated = true;
+                break;
+            }
+            final int cp = Character.codePointBefore(buffer, i, base);
+            i -= Character.charCount(cp);
+            arc = glueMorphemes.findTargetArc(Character.toLowerCase(cp), arc, arc, br);
+            if (arc == null) break;
+
+            if (arc.isFinal())
+            {
+                context.addEdge(i - base, 0);
+            }
         }
+        context.glueCount[offset] = context.edgePoolSize - context.glueFirst[offset];
+        return first;
     }
 
     /**
-     * Create glue morphemes FST.
+     * Convert a character sequence <code>s</code> into full unicode codepoints.
      */
-    private FST<Object> createMorphemesFST() throws IOException
+    static IntsRefBuilder UTF16ToUTF32(CharSequence s, IntsRefBuilder builder)
     {
-        String [] morphemes = {
-            "e", "es", "en", "er", "n", "ens", "ns", "s"
-        };
-
-        // Inverse and sort.
-        for (int i = 0; i < morphemes.length; i++)
-        {
-            morphemes[i] = new StringBuilder(morphemes[i]).reverse().toString();
-        }
-        Arrays.sort(morphemes);
+        builder.clear();
 
-        // Build FST.
-        FSTCompiler<Object> compiler = new FSTCompiler.Builder<>(FST.INPUT_TYPE.BYTE4, 
-            NoOutputs.getSingleton()).build();
-        final Object nothing = NoOutputs.getSingleton().getNoOutput();
-        IntsRefBuilder intsBuilder = new IntsRefBuilder();
-        
-        for (String morpheme : morphemes)
+        for (int charIdx = 0, charLimit = s.length(); charIdx < charLimit;)
         {
-            UTF16ToUTF32(morpheme, intsBuilder);
-            compiler.add(intsBuilder.get(), nothing);
+            final int u32 = Character.codePointAt(s, charIdx);
+            builder.append(u32);
+            charIdx += Character.charCount(u32);
         }
-        
-        FST.FSTMetadata<Object> metadata = compiler.compile();
-        return FST.fromFSTReader(metadata, compiler.getFSTReader());
+        return builder;
     }
-    
+
     /**
-     * Custom Comparator for sorting a list of lists.
-     * 
-     * @param <T>
-     * @param list
-     * @return 
+     * Sort decompositions like {@link #split(CharSequence)} does: by number of parts, descending,
+     * then by length of the first part, ascending.
+     *
+     * @deprecated {@link #split(CharSequence)} returns sorted decompositions.
      */
+    @Deprecated
     public static <T> List<? extends List<T>> sortListBySizeDescending(List<? extends List<T>> list) {
-        Collections.sort(list, (List<T> o1, List<T> o2) -> Integer.compare(o2.size(), o1.size()));
-        
-        Collections.sort(list, new Comparator<List>() {
-            @Override
-            public int compare(List o1, List o2) {
-                if (o2.size() != o1.size() || o2.isEmpty() || o1.isEmpty()) {
-                    return Integer.compare(o2.size(), o1.size());
-                } else {
-                    String o2ele0 = (String)o2.get(0);
-                    String o1ele0 = (String)o1.get(0);
-                    return Integer.compare(o1ele0.length(), o2ele0.length());
-                }
-                
+        Collections.sort(list, (List<T> o1, List<T> o2) -> {
+            if (o2.size() != o1.size() || o2.isEmpty() || o1.isEmpty()) {
+                return Integer.compare(o2.size(), o1.size());
             }
+            return Integer.compare(((CharSequence) o1.get(0)).length(), ((CharSequence) o2.get(0)).length());
         });
         return list;
-
-    } 
+    }
 }
@@ -11,6 +11,7 @@ import org.apache.lucene.analysis.core.WhitespaceTokenizer;
  * @author ben.demott
  */
 public class GraphGermanCompoundAnalyzer extends Analyzer {
+    public final CompoundDictionary dictionary;
     public final int minWordSize;
     public final boolean onlyLongestMatch;
     public final boolean preserveOriginal;
@@ -22,6 +23,14 @@ public class GraphGermanCompoundAnalyzer extends Analyzer {
     }
 
     public GraphGermanCompoundAnalyzer(int minWordSize, boolean onlyLongestMatch, boolean preserveOriginal) {
+        this(CompoundDictionary.getDefault(), minWordSize, onlyLongestMatch, preserveOriginal);
+    }
+
+    /**
+     * @param dictionary  shared dictionary, the caller remains responsible for closing it.
+     */
+    public GraphGermanCompoundAnalyzer(CompoundDictionary dictionary, int minWordSize, boolean onlyLongestMatch, boolean preserveOriginal) {
+        this.dictionary = dictionary;
         this.minWordSize = minWordSize;
         this.onlyLongestMatch = onlyLongestMatch;
         this.preserveOriginal = preserveOriginal;
@@ -33,9 +42,12 @@ public class GraphGermanCompoundAnalyzer extends Analyzer {
         tokenizer.setReader(new StringReader(s));
         GraphGermanCompoundTokenFilter tokenFilter;
         if(this.minWordSize == 0) {
-            tokenFilter = new GraphGermanCompoundTokenFilter(tokenizer);
+            tokenFilter = new GraphGermanCompoundTokenFilter(tokenizer, dictionary,
+                    GraphGermanCompoundTokenFilter.DEFAULT_MIN_WORD_SIZE,
+                    GraphGermanCompoundTokenFilter.DEFAULT_ONLY_LONGEST_MATCH,
+                    GraphGermanCompoundTokenFilter.DEFAULT_PRESERVE_ORIGINAL);
         } else {
-            tokenFilter = new GraphGermanCompoundTokenFilter(tokenizer, minWordSize, onlyLongestMatch, preserveOriginal);
+            tokenFilter = new GraphGermanCompoundTokenFilter(tokenizer, dictionary, minWordSize, onlyLongestMatch, preserveOriginal);
         }
         return new TokenStreamComponents(tokenizer, tokenFilter);
     }
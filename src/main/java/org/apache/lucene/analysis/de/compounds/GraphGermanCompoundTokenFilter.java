@@ -1,19 +1,20 @@
 package org.apache.lucene.analysis.de.compounds;
 
+import org.apache.lucene.analysis.CharArraySet;
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.KeywordAttribute;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.ArrayUtil;
 
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.ListIterator;
+import java.util.Arrays;
+import java.util.Objects;
 
 /**
  * A German decompounding token filter that maintains proper graphs of generated tokens.
@@ -24,22 +25,102 @@ import java.util.ListIterator;
  * This filter breaks apart those sub-words in such a way as to preserve the original word and
  * create a graph of sub-words that are contained within the dimensions of the original word.
  * 
+ * Tokens marked as keywords ({@link KeywordAttribute}, for example by a
+ * {@code SetKeywordMarkerFilter} before this filter) and tokens in the set of protected words (brand
+ * names, product codes, names of people that happen to be concatenations of dictionary words) are
+ * passed through unchanged, without calling the splitter.
+ * 
+ * The number of sub-words emitted per input token can be capped with
+ * {@link SplitLimits#getMaxSubwords()} of the splitter's limits.  Sequences are dropped from the
+ * end until the rest fits, or all of them, depending on the {@link SplitLimits.Fallback}.
+ * 
+ * The filter emits a token graph by default ({@link OutputMode#GRAPH}), for query time analysis.
+ * At index time, where positions are flattened anyway, {@link OutputMode#FLAT} emits a flat token
+ * stream directly, in the same single pass, so no {@code FlattenGraphFilter} is needed.
+ * 
+ * Pending sub-words are kept as split points into a copy of the original term together with
+ * their position attributes, all in reusable arrays.  Sub-words are emitted by copying slices of
+ * the term into the term attribute, so once warmed up the filter does not allocate per token.
+ * 
  * @author ben.demott
  */
 public class GraphGermanCompoundTokenFilter extends TokenFilter {
     
+    /**
+     * How the positions of sub-words are emitted.
+     */
+    public enum OutputMode {
+        /**
+         * A token graph: alternative decompositions are parallel paths, sub-words spanning several
+         * positions of another decomposition have a position length greater than 1.  For query
+         * time, an index needs a {@code FlattenGraphFilter} after it.
+         */
+        GRAPH,
+        /**
+         * A flat token stream for index time, as a {@code FlattenGraphFilter} after {@link #GRAPH}
+         * would produce it: the boundaries of all decompositions are merged into one chain of
+         * positions, each sub-word starts at the position of the longest path of sub-words before
+         * it, identical sub-words are emitted once.  Tokens are emitted in position order without
+         * buffering beyond the current term.
+         */
+        FLAT
+    }
+    
     static final int DEFAULT_MIN_WORD_SIZE = 5;
     static final boolean DEFAULT_ONLY_LONGEST_MATCH = false;
     static final boolean DEFAULT_PRESERVE_ORIGINAL = true;
+    static final int DEFAULT_BEST_DECOMPOSITIONS = 0;
+    static final OutputMode DEFAULT_OUTPUT_MODE = OutputMode.GRAPH;
     
+    // the splitter of the current stream, taken from the acquired snapshot of a reloadable splitter.
     private GermanCompoundSplitter splitter;
+    private final ReloadableSplitter splitters;
+    private ReloadableSplitter.Snapshot snapshot;
+    private final SplitContext splitContext = new SplitContext();
     private final int minWordSize;
     private final boolean onlyLongestMatch;
     private final boolean preserveOriginal;
+    private final int bestDecompositions;
+    private final OutputMode outputMode;
+    private final CharArraySet protectedWords;
+    
+    // A copy of the current input term and its offsets, sub-words are slices of it.
+    private char[] term = new char[16];
+    private int startOffset;
+    private int endOffset;
     
-    private State inputTokenState;
-    private TokenAttributes currentToken = null;
-    private LinkedList<TokenAttributes> tokenQueue;
+    // The decompounded sub-words, sequence by sequence: the term slice of each sub-word, the end
+    // of the previous sub-word of its sequence and its position attributes.  seqFirst/seqSize
+    // locate each sequence in these arrays.
+    private int[] partStart = new int[8];
+    private int[] partEnd = new int[8];
+    private int[] partFrom = new int[8];
+    private int[] partStartOffset = new int[8];
+    private int[] partEndOffset = new int[8];
+    private int[] partPosInc = new int[8];
+    private int[] partPosLen = new int[8];
+    private int partCount;
+    private int[] seqFirst = new int[4];
+    private int[] seqSize = new int[4];
+    
+    // The emission queue: indexes of sub-words in the order they are emitted.
+    private int[] queue = new int[8];
+    private int queueSize;
+    private int queuePos;
+    
+    // The position of every sub-word boundary by its offset in the term, and the scratch arrays
+    // of the graph construction.
+    private int[] nodes = new int[16];
+    private int[] buckets = new int[16];
+    private int[] order = new int[8];
+    private int[] positionStart = new int[8];
+    private int[] positionEnd = new int[8];
+
+    // counts of the current stream, added to the dictionary metrics when it ends.
+    private CompoundMetrics metrics;
+    private long termsSeen;
+    private long termsSkipped;
+    private long tokensEmitted;
     
     // The term attribute holds the string text of the token.
     private final CharTermAttribute termAttr = addAttribute(CharTermAttribute.class);
@@ -53,6 +134,8 @@ public class GraphGermanCompoundTokenFilter extends TokenFilter {
     private final PositionLengthAttribute posLengthAttr = addAttribute(PositionLengthAttribute.class);
     // The type attribute of a token explicitly controls the tokens type as stored in the index.
     private final TypeAttribute typeAttr = addAttribute(TypeAttribute.class);
+    // Keywords are protected from decompounding.
+    private final KeywordAttribute keywordAttr = addAttribute(KeywordAttribute.class);
    
     public GraphGermanCompoundTokenFilter(TokenStream input) {
         this(input, DEFAULT_MIN_WORD_SIZE, DEFAULT_ONLY_LONGEST_MATCH, DEFAULT_PRESERVE_ORIGINAL);
@@ -67,24 +150,142 @@ public class GraphGermanCompoundTokenFilter extends TokenFilter {
      * @param preserveOriginal  In addition to outputting the decompounded tokens, output the original token as well
      */
     public GraphGermanCompoundTokenFilter(TokenStream input, int minWordSize, boolean onlyLongestMatch, boolean preserveOriginal) {
+        this(input, CompoundDictionary.getDefault(), minWordSize, onlyLongestMatch, preserveOriginal);
+    }
+    
+    /**
+     * 
+     * 
+     * @param input  The TokenStream from lucene
+     * @param dictionary  The shared dictionary used for decompounding, it is not closed by this filter
+     * @param minWordSize  The minimum length of a term to attempt decompounding on.
+     * @param onlyLongestMatch  Only use the longest term match if there are multiple ways to decompound the token
+     * @param preserveOriginal  In addition to outputting the decompounded tokens, output the original token as well
+     */
+    public GraphGermanCompoundTokenFilter(TokenStream input, CompoundDictionary dictionary, int minWordSize, boolean onlyLongestMatch, boolean preserveOriginal) {
+        this(input, new GermanCompoundSplitter(dictionary), minWordSize, onlyLongestMatch, preserveOriginal);
+    }
+    
+    /**
+     * 
+     * 
+     * @param input  The TokenStream from lucene
+     * @param splitter  The splitter used for decompounding, splitters are thread safe and may be shared between filters
+     * @param minWordSize  The minimum length of a term to attempt decompounding on.
+     * @param onlyLongestMatch  Only use the longest term match if there are multiple ways to decompound the token
+     * @param preserveOriginal  In addition to outputting the decompounded tokens, output the original token as well
+     */
+    public GraphGermanCompoundTokenFilter(TokenStream input, GermanCompoundSplitter splitter, int minWordSize, boolean onlyLongestMatch, boolean preserveOriginal) {
+        this(input, splitter, minWordSize, onlyLongestMatch, preserveOriginal, DEFAULT_BEST_DECOMPOSITIONS);
+    }
+    
+    /**
+     * 
+     * 
+     * @param input  The TokenStream from lucene
+     * @param splitter  The splitter used for decompounding, splitters are thread safe and may be shared between filters
+     * @param minWordSize  The minimum length of a term to attempt decompounding on.
+     * @param onlyLongestMatch  Only use the longest term match if there are multiple ways to decompound the token
+     * @param preserveOriginal  In addition to outputting the decompounded tokens, output the original token as well
+     * @param bestDecompositions  If positive, only the given number of most probable decompositions is searched
+     *          for (see {@link GermanCompoundSplitter#splitBest(char[], int, int, int, SplitContext)}), instead of all
+     */
+    public GraphGermanCompoundTokenFilter(TokenStream input, GermanCompoundSplitter splitter, int minWordSize, boolean onlyLongestMatch, boolean preserveOriginal, int bestDecompositions) {
+        this(input, splitter, minWordSize, onlyLongestMatch, preserveOriginal, bestDecompositions, DEFAULT_OUTPUT_MODE);
+    }
+    
+    /**
+     * 
+     * 
+     * @param input  The TokenStream from lucene
+     * @param splitter  The splitter used for decompounding, splitters are thread safe and may be shared between filters
+     * @param minWordSize  The minimum length of a term to attempt decompounding on.
+     * @param onlyLongestMatch  Only use the longest term match if there are multiple ways to decompound the token
+     * @param preserveOriginal  In addition to outputting the decompounded tokens, output the original token as well
+     * @param bestDecompositions  If positive, only the given number of most probable decompositions is searched
+     *          for (see {@link GermanCompoundSplitter#splitBest(char[], int, int, int, SplitContext)}), instead of all
+     * @param outputMode  A token graph for queries, or flat positions for indexing
+     */
+    public GraphGermanCompoundTokenFilter(TokenStream input, GermanCompoundSplitter splitter, int minWordSize, boolean onlyLongestMatch, boolean preserveOriginal, int bestDecompositions, OutputMode outputMode) {
+        this(input, splitter, minWordSize, onlyLongestMatch, preserveOriginal, bestDecompositions, outputMode, null);
+    }
+    
+    /**
+     * 
+     * 
+     * @param input  The TokenStream from lucene
+     * @param splitter  The splitter used for decompounding, splitters are thread safe and may be shared between filters
+     * @param minWordSize  The minimum length of a term to attempt decompounding on.
+     * @param onlyLongestMatch  Only use the longest term match if there are multiple ways to decompound the token
+     * @param preserveOriginal  In addition to outputting the decompounded tokens, output the original token as well
+     * @param bestDecompositions  If positive, only the given number of most probable decompositions is searched
+     *          for (see {@link GermanCompoundSplitter#splitBest(char[], int, int, int, SplitContext)}), instead of all
+     * @param outputMode  A token graph for queries, or flat positions for indexing
+     * @param protectedWords  Terms that are never decompounded, may be <code>null</code>
+     */
+    public GraphGermanCompoundTokenFilter(TokenStream input, GermanCompoundSplitter splitter, int minWordSize, boolean onlyLongestMatch, boolean preserveOriginal, int bestDecompositions, OutputMode outputMode, CharArraySet protectedWords) {
+        this(input, splitter, null, minWordSize, onlyLongestMatch, preserveOriginal, bestDecompositions, outputMode, protectedWords);
+    }
+    
+    /**
+     * Create a filter following the reloads of a dictionary file: every stream acquires the current
+     * version when it is reset and keeps it until the next reset or close, reloads do not affect
+     * streams in flight.
+     * 
+     * @param input  The TokenStream from lucene
+     * @param splitters  The reloadable splitter, shared between filters
+     * @param minWordSize  The minimum length of a term to attempt decompounding on.
+     * @param onlyLongestMatch  Only use the longest term match if there are multiple ways to decompound the token
+     * @param preserveOriginal  In addition to outputting the decompounded tokens, output the original token as well
+     * @param bestDecompositions  If positive, only the given number of most probable decompositions is searched
+     *          for (see {@link GermanCompoundSplitter#splitBest(char[], int, int, int, SplitContext)}), instead of all
+     */
+    public GraphGermanCompoundTokenFilter(TokenStream input, ReloadableSplitter splitters, int minWordSize, boolean onlyLongestMatch, boolean preserveOriginal, int bestDecompositions) {
+        this(input, splitters, minWordSize, onlyLongestMatch, preserveOriginal, bestDecompositions, DEFAULT_OUTPUT_MODE);
+    }
+    
+    /**
+     * Create a filter following the reloads of a dictionary file, see
+     * {@link #GraphGermanCompoundTokenFilter(TokenStream, ReloadableSplitter, int, boolean, boolean, int)}.
+     * 
+     * @param outputMode  A token graph for queries, or flat positions for indexing
+     */
+    public GraphGermanCompoundTokenFilter(TokenStream input, ReloadableSplitter splitters, int minWordSize, boolean onlyLongestMatch, boolean preserveOriginal, int bestDecompositions, OutputMode outputMode) {
+        this(input, splitters, minWordSize, onlyLongestMatch, preserveOriginal, bestDecompositions, outputMode, null);
+    }
+    
+    /**
+     * Create a filter following the reloads of a dictionary file, see
+     * {@link #GraphGermanCompoundTokenFilter(TokenStream, ReloadableSplitter, int, boolean, boolean, int)}.
+     * 
+     * @param outputMode  A token graph for queries, or flat positions for indexing
+     * @param protectedWords  Terms that are never decompounded, may be <code>null</code>
+     */
+    public GraphGermanCompoundTokenFilter(TokenStream input, ReloadableSplitter splitters, int minWordSize, boolean onlyLongestMatch, boolean preserveOriginal, int bestDecompositions, OutputMode outputMode, CharArraySet protectedWords) {
+        this(input, splitters.getSplitter(), splitters, minWordSize, onlyLongestMatch, preserveOriginal, bestDecompositions, outputMode, protectedWords);
+    }
+    
+    private GraphGermanCompoundTokenFilter(TokenStream input, GermanCompoundSplitter splitter, ReloadableSplitter splitters, int minWordSize, boolean onlyLongestMatch, boolean preserveOriginal, int bestDecompositions, OutputMode outputMode, CharArraySet protectedWords) {
         super(input); // will be stored as this.input
+        this.splitter = splitter;
+        this.splitters = splitters;
         this.minWordSize = minWordSize;
         this.onlyLongestMatch = onlyLongestMatch;
         this.preserveOriginal = preserveOriginal;
-        this.buildGermanSplitter();
+        this.bestDecompositions = bestDecompositions;
+        this.outputMode = Objects.requireNonNull(outputMode, "outputMode");
+        this.protectedWords = protectedWords;
+        this.metrics = splitter.getDictionary().getMetrics();
         this.setup();
     }
     
     private void setup() {
-        this.tokenQueue = new LinkedList<>();
-        this.currentToken = null;
+        this.partCount = 0;
+        this.queueSize = 0;
+        this.queuePos = 0;
         this.clearAttributes();
     }
     
-    private void buildGermanSplitter() {
-        this.splitter = new GermanCompoundSplitter();
-    }
-    
     /**
      * incrementToken() is called by the token consumer to set attributes for the next token 
      * available in the token stream.
@@ -115,247 +316,387 @@ public class GraphGermanCompoundTokenFilter extends TokenFilter {
     @Override
     public final boolean incrementToken() throws IOException {
        
-        // If the tokenQueue is empty, there are no decompoundings to emit, so we need to move onto
+        // If the queue is empty, there are no decompoundings to emit, so we need to move onto
         // the next input token.
-        boolean moreTokens = false;
-        if(tokenQueue.isEmpty()) {
-             moreTokens = input.incrementToken();
-             
-             // If there are no more input tokens we need to stop token emission by returning false.
-             // this means incrementToken() will not be called again.
-             if(!moreTokens) {
-                 return false;
-             }
-        }
-        
-        // If there are more tokens available in the stream, and the output queue is empty, we 
-        // need to get the next tokens text and decompound it.
-        if (tokenQueue.isEmpty() && moreTokens) {
+        if(queuePos == queueSize) {
+            // If there are no more input tokens we need to stop token emission by returning false.
+            // this means incrementToken() will not be called again.
+            if(!input.incrementToken()) {
+                return false;
+            }
             
-            currentToken = this.currentToken();
+            this.partCount = 0;
+            this.queueSize = 0;
+            this.queuePos = 0;
+            int posLength = this.posLengthAttr.getPositionLength();
+            this.termsSeen++;
             
             // Obey minimum word size setting... Shortcut splitting the word if it doesn't 
-            if(this.termAttr.length() >= this.minWordSize) {
-                List<ArrayList<CharSequence>> termSequences = this.splitter.split(this.termAttr.toString());
-                if(!termSequences.isEmpty() && this.onlyLongestMatch) {
-                    termSequences = termSequences.subList(termSequences.size() - 1, termSequences.size());
-                }
-                
-                List<ArrayList<TokenAttributes>> decompoundedTerms = this.termSeqTokenAttributes(currentToken, termSequences);
-                tokenQueue = this.generateTokenQueue(decompoundedTerms);
-                currentToken.posLength = calculateSourceTermPosLength(decompoundedTerms);
-                
+            if(this.termAttr.length() >= this.minWordSize && !this.isProtected()) {
+                posLength = this.decompound();
+            } else {
+                this.termsSkipped++;
             }
 
             // If we are supposed to output the original token along with the decompounded tokens
             // we must return the token.  Or if the word has no decompundings, we just pass-through
             // the token without modifying it.
-            if(preserveOriginal || tokenQueue.isEmpty()) {
-                // emit the current token
-                // or no decompoundings were generated
-                this.setAttributes(currentToken);
+            this.tokensEmitted += queueSize;
+            if(preserveOriginal || queueSize == 0) {
+                // emit the current token, it still holds the input attributes.
+                this.tokensEmitted++;
+                this.posLengthAttr.setPositionLength(posLength);
+                this.typeAttr.setType(TypeAttribute.DEFAULT_TYPE);
                 return true;
             }
         }
         
-        // If we've reached this point in code, we have compoundings (tokenQueue is not empty)
+        // If we've reached this point in code, we have compoundings (queue is not empty)
         // export the sequence of tokens at the given position
         this.clearAttributes();  // get clearAttributes() was not called correctly in TokenStream chain if this isn't called every time!
-        TokenAttributes token = tokenQueue.pop();
-        this.setAttributes(token);
+        this.setAttributes(queue[queuePos++]);
         return true;
     }
   
     @Override
     public void reset() throws IOException {
         this.setup();
+        this.flushMetrics();
+        if(this.splitters != null) {
+            // the stream is analyzed by the version current at its start, acquire it before
+            // releasing the previous one, they may be the same.
+            ReloadableSplitter.Snapshot previous = this.snapshot;
+            this.snapshot = this.splitters.acquire();
+            this.splitter = this.snapshot.getSplitter();
+            this.metrics = this.splitter.getDictionary().getMetrics();
+            if(previous != null) {
+                previous.close();
+            }
+        }
         super.reset();
     }
+
+    @Override
+    public void end() throws IOException {
+        super.end();
+        this.flushMetrics();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.flushMetrics();
+        if(this.snapshot != null) {
+            this.snapshot.close();
+            this.snapshot = null;
+        }
+        super.close();
+    }
+
+    /**
+     * Whether the current term is a keyword or a protected word, checked in place with a single
+     * hash lookup.
+     */
+    private boolean isProtected() {
+        return this.keywordAttr.isKeyword() || (this.protectedWords != null
+                && this.protectedWords.contains(this.termAttr.buffer(), 0, this.termAttr.length()));
+    }
     
     /**
-     * Flatten tokens into a queue that is in the correct order for emission.
-     * This means walking the token sequences in columnar order.
+     * Add the counts of the current stream to the dictionary metrics.
      */
-    private LinkedList<TokenAttributes> generateTokenQueue(List<ArrayList<TokenAttributes>> tokenSequences) {
-        LinkedList<TokenAttributes> tokens = new LinkedList<>();
-        if(tokenSequences.isEmpty()) {
-            return tokens;
+    private void flushMetrics() {
+        if(this.termsSeen > 0) {
+            this.metrics.terms(this.termsSeen, this.termsSkipped, this.tokensEmitted);
+            this.termsSeen = 0;
+            this.termsSkipped = 0;
+            this.tokensEmitted = 0;
         }
+    }
+    
+    /**
+     * Decompound the current input term: split it, calculate the position attributes of every
+     * sub-word and queue the sub-words for emission.
+     * 
+     * @return the position length of the source term.
+     */
+    private int decompound() {
+        final int length = this.termAttr.length();
+        this.term = ArrayUtil.grow(this.term, length);
+        System.arraycopy(this.termAttr.buffer(), 0, this.term, 0, length);
+        this.startOffset = this.offsetAttr.startOffset();
+        this.endOffset = this.offsetAttr.endOffset();
         
-        // numTerms is the maximum size of a given token sequence (should be ordered from longest
-        //   to shortest)
-        int numTerms = tokenSequences.get(0).size();
+        int count;
+        if(this.bestDecompositions > 0) {
+            count = this.splitter.splitBest(this.term, 0, length, this.bestDecompositions, this.splitContext);
+            // in the order of split(), onlyLongestMatch keeps the sequence with the fewest sub-words.
+            this.splitContext.sort();
+        } else {
+            count = this.splitter.split(this.term, 0, length, this.splitContext);
+        }
+        if(count == 0) {
+            return 1;
+        }
         
-        // Iterate over the tokens, and place them into a flat list by columnar order.
-        for(int col=0; col<numTerms; col++) {
-            for (List<TokenAttributes> sequence : tokenSequences) {
-                if(col >= sequence.size()) {
-                    continue;
-                }
-                tokens.add(sequence.get(col));
-            }
+        int first = this.onlyLongestMatch ? count - 1 : 0;
+        this.seqFirst = ArrayUtil.grow(this.seqFirst, count - first);
+        this.seqSize = ArrayUtil.grow(this.seqSize, count - first);
+        for(int d = first; d < count; d++) {
+            this.addSequence(d - first, d);
         }
         
-        return tokens;
+        int sequences = this.limitSequences(count - first);
+        if(sequences == 0) {
+            this.partCount = 0;
+            return 1;
+        }
+        return this.queueSubwords(sequences, length);
     }
     
     /**
-     * lucene TokenFilter's are state machines, when a token is ready to be emitted, the state of 
-     * the various token attributes are set, and 'true' is returned from incrementToken() to 
-     * indicate that the current state represents a new token.
-     * 
-     * This method sets the token state from a TokenAttributes object.
+     * Apply the sub-word limit of the splitter: keep the leading sequences whose sub-words fit,
+     * or none of them if the fallback is to pass the token through.
      * 
-     * @param token 
+     * @return the number of sequences to emit.
      */
-    private void setAttributes(TokenAttributes token) {
-        this.termAttr.setEmpty().append(token.getTerm());
-        this.offsetAttr.setOffset(token.offsetStart, token.offsetEnd);
-        this.posIncAttr.setPositionIncrement(token.posIncrement);
-        this.posLengthAttr.setPositionLength(token.posLength);
-        this.typeAttr.setType(TypeAttribute.DEFAULT_TYPE);
+    private int limitSequences(int sequences) {
+        SplitLimits limits = this.splitter.getLimits();
+        int maxSubwords = limits.getMaxSubwords();
+        if(maxSubwords == 0 || this.partCount <= maxSubwords) {
+            return sequences;
+        }
+        limits.subwordLimitHit();
+        if(limits.getFallback() == SplitLimits.Fallback.PASS_THROUGH) {
+            return 0;
+        }
+        int kept = 0;
+        int subwords = 0;
+        while(kept < sequences && subwords + this.seqSize[kept] <= maxSubwords) {
+            subwords += this.seqSize[kept++];
+        }
+        return kept;
     }
     
     /**
-     * Get a representation of the current token state
+     * Queue the sub-words of the kept sequences for emission, with their position attributes and
+     * offsets.
+     * 
+     * The graph is built from the boundaries of the decompositions: a sub-word leaves the
+     * boundary where the previous sub-word of its sequence ends (so a glue morpheme before it
+     * falls into its span) and arrives at its end.  Sub-words are bucketed by the boundary they
+     * leave, which orders them for the position assignment and brings identical sub-words of
+     * different sequences together, so the whole graph is built in time linear in the number of
+     * sub-words and the term length.
      * 
-     * @return 
+     * In {@link OutputMode#GRAPH} every boundary is a node, numbered in offset order.  In
+     * {@link OutputMode#FLAT} the position of a boundary is the length of the longest path of
+     * sub-words reaching it, boundaries on parallel paths merge.
+     * 
+     * @return the position length of the source term.
      */
-    private TokenAttributes currentToken() {
-        TokenAttributes token = new TokenAttributes(
-                this.termAttr.toString(),
-                this.offsetAttr.startOffset(),
-                this.offsetAttr.endOffset(),
-                this.posIncAttr.getPositionIncrement(),
-                this.posLengthAttr.getPositionLength()
-        );
-        return token;
+    private int queueSubwords(int sequences, int length) {
+        final int parts = this.seqFirst[sequences - 1] + this.seqSize[sequences - 1];
+        this.queue = ArrayUtil.grow(this.queue, parts);
+        this.order = ArrayUtil.grow(this.order, parts);
+        this.buckets = ArrayUtil.grow(this.buckets, length + 2);
+        this.nodes = ArrayUtil.grow(this.nodes, length + 1);
+        
+        // counting sort by the boundary each sub-word leaves, stable so sequences keep their order.
+        Arrays.fill(this.buckets, 0, length + 2, 0);
+        for(int part = 0; part < parts; part++) {
+            this.buckets[this.partFrom[part] + 1]++;
+        }
+        for(int offset = 0; offset <= length; offset++) {
+            this.buckets[offset + 1] += this.buckets[offset];
+        }
+        for(int part = 0; part < parts; part++) {
+            this.queue[this.buckets[this.partFrom[part]]++] = part;
+        }
+        
+        // drop identical sub-words, they leave the same boundary: buckets[end] holds the boundary
+        // the last kept sub-word ending at end left.  Sub-words with and without a glue morpheme
+        // before them (recht and e|recht, echt and er|echt) share the boundaries but not the term
+        // slice, the kept sub-words of the boundary are compared then.
+        Arrays.fill(this.buckets, 0, length + 1, -1);
+        Arrays.fill(this.nodes, 0, length + 1, -1);
+        this.nodes[0] = 0;
+        int kept = 0;
+        for(int q = 0; q < parts; q++) {
+            final int part = this.queue[q];
+            final int from = this.partFrom[part];
+            final int end = this.partEnd[part];
+            if(this.buckets[end] == from && this.isQueued(part, kept)) {
+                continue;
+            }
+            this.buckets[end] = from;
+            this.queue[kept++] = part;
+            // boundaries are visited in offset order, every path reaching one is known by now.
+            this.nodes[end] = Math.max(this.nodes[end], this.nodes[from] + 1);
+        }
+        
+        if(this.outputMode == OutputMode.GRAPH) {
+            int node = 0;
+            for(int offset = 0; offset <= length; offset++) {
+                if(this.nodes[offset] >= 0) {
+                    this.nodes[offset] = node++;
+                }
+            }
+        }
+        
+        for(int q = 0; q < kept; q++) {
+            final int part = this.queue[q];
+            // the position for now, turned into an increment below.
+            this.partPosInc[part] = this.nodes[this.partFrom[part]];
+            this.partPosLen[part] = this.nodes[this.partEnd[part]] - this.nodes[this.partFrom[part]];
+        }
+        final int positions = this.nodes[length];
+        
+        if(this.outputMode == OutputMode.FLAT) {
+            // flat positions do not follow the offsets, counting sort by position.
+            Arrays.fill(this.buckets, 0, positions + 1, 0);
+            for(int q = 0; q < kept; q++) {
+                this.buckets[this.partPosInc[this.queue[q]] + 1]++;
+            }
+            for(int position = 0; position < positions; position++) {
+                this.buckets[position + 1] += this.buckets[position];
+            }
+            for(int q = 0; q < kept; q++) {
+                final int part = this.queue[q];
+                this.order[this.buckets[this.partPosInc[part]]++] = part;
+            }
+            int[] sorted = this.order;
+            this.order = this.queue;
+            this.queue = sorted;
+        }
+        
+        this.queueOffsets(kept, positions, length);
+        
+        // the first sub-word shares the position of the original term, if it is emitted.
+        int previous = this.preserveOriginal ? 0 : -1;
+        for(int q = 0; q < kept; q++) {
+            final int part = this.queue[q];
+            final int position = this.partPosInc[part];
+            this.partPosInc[part] = position - previous;
+            previous = position;
+        }
+        this.queueSize = kept;
+        return positions;
     }
     
     /**
-     * The source term length, is equal to the sum of posLength for a given token sequence.
-     * 
-     * @param tokenSequences
-     * @return 
+     * Offsets of the queued sub-words: the offsets of the boundaries they leave and arrive at,
+     * if the term is as long as its offsets (no char filter or earlier token filter changed it),
+     * otherwise the offsets of the term.  Flat positions merge boundaries, tokens leaving a
+     * position start at the first of them and tokens arriving at it end at the last one, so
+     * start offsets never go backwards.
      */
-    private int calculateSourceTermPosLength(List<ArrayList<TokenAttributes>> tokenSequences) {
-        if(tokenSequences.isEmpty()) {
-            return 1;
-        } else {
-             return tokenSequences.get(0).size();
+    private void queueOffsets(int kept, int positions, int length) {
+        if(this.endOffset - this.startOffset != length) {
+            for(int q = 0; q < kept; q++) {
+                this.partStartOffset[this.queue[q]] = this.startOffset;
+                this.partEndOffset[this.queue[q]] = this.endOffset;
+            }
+            return;
+        }
+        if(this.outputMode == OutputMode.GRAPH) {
+            for(int q = 0; q < kept; q++) {
+                final int part = this.queue[q];
+                this.partStartOffset[part] = this.startOffset + this.partFrom[part];
+                this.partEndOffset[part] = this.startOffset + this.partEnd[part];
+            }
+            return;
+        }
+        
+        this.positionStart = ArrayUtil.grow(this.positionStart, positions + 1);
+        this.positionEnd = ArrayUtil.grow(this.positionEnd, positions + 1);
+        Arrays.fill(this.positionStart, 0, positions + 1, length);
+        Arrays.fill(this.positionEnd, 0, positions + 1, 0);
+        for(int offset = 0; offset <= length; offset++) {
+            final int position = this.nodes[offset];
+            if(position >= 0) {
+                this.positionStart[position] = Math.min(this.positionStart[position], offset);
+                this.positionEnd[position] = Math.max(this.positionEnd[position], offset);
+            }
+        }
+        for(int position = 1; position <= positions; position++) {
+            this.positionStart[position] = Math.max(this.positionStart[position], this.positionStart[position - 1]);
+        }
+        for(int q = 0; q < kept; q++) {
+            final int part = this.queue[q];
+            final int start = this.positionStart[this.partPosInc[part]];
+            final int end = Math.max(start, this.positionEnd[this.partPosInc[part] + this.partPosLen[part]]);
+            this.partStartOffset[part] = this.startOffset + start;
+            this.partEndOffset[part] = this.startOffset + end;
         }
     }
     
     /**
-     * Calculate term attributes from the list of term sequences
+     * lucene TokenFilter's are state machines, when a token is ready to be emitted, the state of 
+     * the various token attributes are set, and 'true' is returned from incrementToken() to 
+     * indicate that the current state represents a new token.
+     * 
+     * This method sets the token state of a queued sub-word, its term is a lowercased slice of
+     * the original term.
      * 
-     * This method converts a list of lists of terms, into a list of lists of TokenAttributes
-     * and calculates the attributes.
+     * @param part index of the sub-word
      */
-    private List<ArrayList<TokenAttributes>> termSeqTokenAttributes(TokenAttributes srcToken, List<ArrayList<CharSequence>> termSequences) throws IOException {
-        List<ArrayList<TokenAttributes>> attrSequences = new ArrayList<>(termSequences.size());
-        List<TokenAttributes> previous = null;
-        for (List<CharSequence> terms : termSequences) {
-            previous = this.calculateTermAttributes(srcToken, terms, previous);
-            attrSequences.add(new ArrayList<TokenAttributes>(previous));
+    private void setAttributes(int part) {
+        final int start = partStart[part];
+        final int length = partEnd[part] - start;
+        GermanCompoundSplitter.foldCase(this.term, start, start + length, this.termAttr.resizeBuffer(length), 0);
+        this.termAttr.setLength(length);
+        this.offsetAttr.setOffset(partStartOffset[part], partEndOffset[part]);
+        this.posIncAttr.setPositionIncrement(partPosInc[part]);
+        this.posLengthAttr.setPositionLength(partPosLen[part]);
+        this.typeAttr.setType(TypeAttribute.DEFAULT_TYPE);
+    }
+    
+    /**
+     * Whether a sub-word with the same term slice as <code>part</code> leaves its boundary among
+     * the first <code>kept</code> queued sub-words.  Those leaving the same boundary are the last
+     * ones queued.
+     */
+    private boolean isQueued(int part, int kept) {
+        final int from = this.partFrom[part];
+        for(int q = kept - 1; q >= 0 && this.partFrom[this.queue[q]] == from; q--) {
+            final int other = this.queue[q];
+            if(this.partEnd[other] == this.partEnd[part] && this.partStart[other] == this.partStart[part]) {
+                return true;
+            }
         }
-        return attrSequences;
+        return false;
     }
     
     /**
-     * The purpose of this method is to determine token attributes for each term returned from the 
-     * german decompounding splitter.  The splitter can return multiple term-sequences when there
-     * is more than one way to represent a decompounding.  In this scenario we have to infer the
-     * length of each term from the contents of the term.
+     * Add the sub-words of a decomposition as the given sequence.
      * 
-     * @param srcToken
-     * @param terms
-     * @param previous
-     * @return 
+     * @param seq index of the sequence
+     * @param decomposition index of the decomposition in the split context
      */
-    private List<TokenAttributes> calculateTermAttributes(TokenAttributes srcToken, List<CharSequence> terms, List<TokenAttributes> previous) throws IOException {
-        List<TokenAttributes> tokens = new ArrayList<>(terms.size());
-        if(previous == null) {
-            // if there is no previous line, we assume this term sequence is the longest,
-            // thats because the splitter returns the longest sequence first.
-            ListIterator<CharSequence> termsIt = terms.listIterator();
-            while (termsIt.hasNext()) {
-                int idx = termsIt.nextIndex();
-                TokenAttributes token = new TokenAttributes(srcToken);
-                token.setTerm(termsIt.next());
-                // very important detail here... If the option to preserveOriginal token
-                // is set to true, then the first token we emit in decompounding will be at
-                // the same position (posIncrement=0), otherwise, it will occupy a new position,
-                // (posIncrement=1).
-                token.posIncrement = (idx == 0 && this.preserveOriginal) ? 0 : 1;
-                token.posLength = 1;
-                tokens.add(token);
-            }
-        } else if(previous.size() >= terms.size()) {
-            // if there is a previous line, then this lines term posLengths need to be inferred
-            
-            int totalLength = 0;
-            for (TokenAttributes prevTok : previous) {
-                totalLength += prevTok.posLength;
-            }
-            int termsRemain = terms.size();
-            int lengthRemain = totalLength;
-            
-            // Iterate through each term of the current sequence and generate a TokenAttributes object
-            // for each term.
-            ListIterator<CharSequence> termsIt = terms.listIterator();
-            while (termsIt.hasNext()) {
-                int idx = termsIt.nextIndex();
-                int posLength = 0;
-                TokenAttributes token = new TokenAttributes(srcToken);
-                token.setTerm(termsIt.next());
-                token.posIncrement = 0; // we occupy the same position as the previous token
-                TokenAttributes previousToken = previous.get(idx);
-                
-                // if the current term length is less than or equal to the previous terms length
-                // we assume the posLength is the same for each token.
-                if(token.getTermLength() <= previousToken.getTermLength()) {
-                    posLength = previousToken.posLength;
-                } else {
-                    // If our term length exceeds the previous tokens length, iterate through terms
-                    // until we've matched or exceeded the length of combined terms. Infer length
-                    // from the size of combined terms.
-                    int matchLength = 0;
-                    int termLenTotal = 0;
-                    int curTermLength = token.getTermLength();
-                    for (TokenAttributes matchPrev : previous.subList(idx, previous.size())) {
-                        termLenTotal += matchPrev.getTermLength();
-                        matchLength += matchPrev.posLength;
-                        if(termLenTotal >= curTermLength) {
-                            posLength = matchLength;
-                            break;
-                        }
-                    }
-                }
-                
-                lengthRemain-=posLength;
-                termsRemain--;
-                
-                posLength = (posLength < 1) ? 1 : posLength;
-                
-                if(termsRemain > lengthRemain) {
-                    // if there isn't enough length left for each remaining term
-                    // adjust the length so there is.
-                    int badLength = termsRemain - lengthRemain;
-                    posLength = Math.max(1, posLength - badLength);
-                } else if (termsRemain == 0) {
-                    // if this is the last term in the sequence, ensure it occupies the entire 
-                    // length of the src token.
-                    posLength += lengthRemain;
-                }
-                token.posLength = posLength;
-                tokens.add(token);
-            }
-        } else {
-            throw new IOException("term sequence length exceeds previous sequence length, this should not be possible");
+    private void addSequence(int seq, int decomposition) {
+        final int size = this.splitContext.partCount(decomposition);
+        this.seqFirst[seq] = this.partCount;
+        this.seqSize[seq] = size;
+        for (int p = 0; p < size; p++) {
+            this.addPart(this.splitContext.partStart(decomposition, p), this.splitContext.partEnd(decomposition, p),
+                    this.splitContext.partBoundary(decomposition, p));
         }
-       
-        return tokens;
+    }
+    
+    private void addPart(int start, int end, int from) {
+        if(this.partCount == this.partStart.length) {
+            this.partStart = ArrayUtil.grow(this.partStart, this.partCount + 1);
+            this.partEnd = ArrayUtil.growExact(this.partEnd, this.partStart.length);
+            this.partFrom = ArrayUtil.growExact(this.partFrom, this.partStart.length);
+            this.partStartOffset = ArrayUtil.growExact(this.partStartOffset, this.partStart.length);
+            this.partEndOffset = ArrayUtil.growExact(this.partEndOffset, this.partStart.length);
+            this.partPosInc = ArrayUtil.growExact(this.partPosInc, this.partStart.length);
+            this.partPosLen = ArrayUtil.growExact(this.partPosLen, this.partStart.length);
+        }
+        this.partStart[this.partCount] = start;
+        this.partEnd[this.partCount] = end;
+        this.partFrom[this.partCount] = from;
+        this.partCount++;
     }
     
 }
@@ -1,19 +1,48 @@
 package org.apache.lucene.analysis.de.compounds;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
 import java.util.Map;
+import org.apache.lucene.analysis.CharArraySet;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.TokenFilterFactory;
-import org.apache.lucene.analysis.compound.CompoundWordTokenFilterBase;
+import org.apache.lucene.util.ResourceLoader;
+import org.apache.lucene.util.ResourceLoaderAware;
 
 /**
  * Factory to construct a GraphGermanCompoundTokenFilter from configuration.
  * 
+ * The <code>dictionary</code>, <code>glueMorphemes</code> and <code>prefixes</code> resources are
+ * loaded when the factory is informed of its {@link ResourceLoader}.  Resources are shared by
+ * content: every factory configured with the same dictionary, glue morphemes and prefixes (in any
+ * core or field) uses one instance.
+ * 
+ * The <code>protected</code> resource lists words that are never decompounded (one per line,
+ * matched with <code>ignoreCase</code>), tokens marked as keywords are not decompounded either.
+ * 
  * @author ben.demott
  */
-public class GraphGermanCompoundTokenFilterFactory extends TokenFilterFactory {
+public class GraphGermanCompoundTokenFilterFactory extends TokenFilterFactory implements ResourceLoaderAware {
+    private final String dictionaryName;
+    private final String glueMorphemesName;
+    private final String prefixesName;
+    private final String protectedName;
+    private final boolean ignoreCase;
+    private CharArraySet protectedWords;
+    private final int cacheSize;
+    private final SplitLimits limits;
+    private final boolean jmx;
+    private GermanCompoundSplitter splitter;
+    private ReloadableSplitter splitters;
     private final int minWordSize;
     private final boolean onlyLongestMatch;
     private final boolean preserveOriginal;
+    private final int bestDecompositions;
+    private final GraphGermanCompoundTokenFilter.OutputMode outputMode;
   
     /**
      * Construct filter factory (used in configuration based construction)
@@ -28,14 +57,203 @@ public class GraphGermanCompoundTokenFilterFactory extends TokenFilterFactory {
         minWordSize = getIntParameter(args, "minWordSize", GraphGermanCompoundTokenFilter.DEFAULT_MIN_WORD_SIZE);
         onlyLongestMatch = getBoolean(args, "onlyLongestMatch", GraphGermanCompoundTokenFilter.DEFAULT_ONLY_LONGEST_MATCH);
         preserveOriginal = getBoolean(args, "preserveOriginal", GraphGermanCompoundTokenFilter.DEFAULT_PRESERVE_ORIGINAL);
+        bestDecompositions = getIntParameter(args, "bestDecompositions", GraphGermanCompoundTokenFilter.DEFAULT_BEST_DECOMPOSITIONS);
+        outputMode = getOutputModeParameter(args, "outputMode", GraphGermanCompoundTokenFilter.DEFAULT_OUTPUT_MODE);
+        dictionaryName = args.remove("dictionary");
+        glueMorphemesName = args.remove("glueMorphemes");
+        prefixesName = args.remove("prefixes");
+        protectedName = args.remove("protected");
+        ignoreCase = getBoolean(args, "ignoreCase", false);
+        cacheSize = getIntParameter(args, "cacheSize", 0);
+        int maxSteps = getIntParameter(args, "maxSteps", 0);
+        int maxArcs = getIntParameter(args, "maxArcs", 0);
+        int maxSubwords = getIntParameter(args, "maxSubwords", 0);
+        SplitLimits.Fallback limitFallback = getFallbackParameter(args, "limitFallback", SplitLimits.Fallback.BEST_SO_FAR);
+        jmx = getBoolean(args, "jmx", false);
         if (!args.isEmpty()) {
             throw new IllegalArgumentException("There were unrecognized parameters, remove them: " + args);
         }
+        // the limits and their counters are shared by all filters created by this factory.
+        limits = new SplitLimits(maxSteps, maxArcs, maxSubwords, limitFallback);
+        if (dictionaryName == null && glueMorphemesName == null && prefixesName == null) {
+            // nothing to load, the bundled dictionary is loaded once per JVM and shared by every
+            // factory instance.
+            setSplitter(CompoundDictionary.getDefault());
+        }
+    }
+
+    /**
+     * Load the configured protected words, dictionary, glue morphemes and prefixes.  A dictionary that is a file on the file
+     * system is memory mapped and can be reloaded (see {@link #reloadDictionary(boolean)}), other
+     * names are opened with the resource loader (for example from a Solr config directory) and
+     * read onto the heap.
+     */
+    @Override
+    public void inform(ResourceLoader loader) throws IOException {
+        if (protectedName != null && protectedWords == null) {
+            protectedWords = getWordSet(loader, protectedName, ignoreCase);
+        }
+        if (splitter != null || splitters != null) {
+            return;
+        }
+        String[] glueMorphemes = (glueMorphemesName == null) ? null
+                : getLines(loader, glueMorphemesName).toArray(new String[0]);
+        String[] prefixes = (prefixesName == null) ? null
+                : getLines(loader, prefixesName).toArray(new String[0]);
+        Path file = (dictionaryName == null) ? null : Paths.get(dictionaryName);
+        if (file != null && Files.isRegularFile(file)) {
+            // a dictionary file is memory mapped and shared by every factory pointing at it, it
+            // can be reloaded under the filters, see reloadDictionary().
+            splitters = new ReloadableSplitter(file, glueMorphemes, prefixes, cacheSize, limits);
+            registerMetrics();
+        } else {
+            // the dictionary is shared by every factory loading the same content.
+            CompoundDictionary dictionary;
+            if (dictionaryName == null) {
+                dictionary = CompoundDictionary.getDefault();
+            } else {
+                try (InputStream input = loader.openResource(dictionaryName)) {
+                    dictionary = CompoundDictionary.acquire(input, dictionaryName);
+                }
+            }
+            // variants hold their own reference to the dictionary.
+            boolean shared = (dictionaryName == null);
+            if (glueMorphemes != null) {
+                CompoundDictionary variant = dictionary.withGlueMorphemes(glueMorphemes);
+                if (!shared) {
+                    dictionary.close();
+                }
+                dictionary = variant;
+                shared = false;
+            }
+            if (prefixes != null) {
+                CompoundDictionary variant = dictionary.withPrefixes(prefixes);
+                if (!shared) {
+                    dictionary.close();
+                }
+                dictionary = variant;
+            }
+            setSplitter(dictionary);
+        }
+    }
+
+    /**
+     * Create the splitter: thread safe and shared by all filters created by this factory, the
+     * cache is shared by every factory using the same dictionary and cache size.
+     */
+    private void setSplitter(CompoundDictionary dictionary) {
+        splitter = new GermanCompoundSplitter(dictionary, 
+                (cacheSize > 0) ? dictionary.getCache(cacheSize) : null, limits);
+        registerMetrics();
+    }
+
+    /**
+     * The metrics are per dictionary, every factory using it reports to the same MBean.
+     */
+    private void registerMetrics() {
+        if (jmx) {
+            getMetrics().registerMBean();
+        }
     }
   
     @Override
     public TokenStream create(TokenStream input) {
-        return new GraphGermanCompoundTokenFilter(input,  minWordSize,  onlyLongestMatch, preserveOriginal);
+        if (splitter == null && splitters == null) {
+            throw new IllegalStateException("inform() must be called before create(), to load " + dictionaryName);
+        }
+        if (protectedName != null && protectedWords == null) {
+            throw new IllegalStateException("inform() must be called before create(), to load " + protectedName);
+        }
+        if (splitters != null) {
+            return new GraphGermanCompoundTokenFilter(input, splitters, minWordSize, onlyLongestMatch, preserveOriginal, bestDecompositions, outputMode, protectedWords);
+        }
+        return new GraphGermanCompoundTokenFilter(input, splitter, minWordSize,  onlyLongestMatch, preserveOriginal, bestDecompositions, outputMode, protectedWords);
+    }
+
+    /**
+     * The splitter of the current dictionary version.
+     */
+    private GermanCompoundSplitter getSplitter() {
+        return (splitters != null) ? splitters.getSplitter() : splitter;
+    }
+
+    /**
+     * Reload the <code>dictionary</code> file, streams created afterwards use the new version while
+     * streams in flight finish on the previous one.  Replace the file atomically (move a new file
+     * over it), the previous version stays mapped until its last stream ends.
+     * 
+     * @param onlyIfModified  Skip the reload if the file was not replaced or modified since it was loaded
+     * @return Whether the dictionary was reloaded.
+     * @throws IllegalStateException if the factory uses the bundled dictionary.
+     */
+    public boolean reloadDictionary(boolean onlyIfModified) {
+        if (splitters == null) {
+            throw new IllegalStateException("The bundled dictionary can not be reloaded, configure a dictionary file");
+        }
+        if (onlyIfModified) {
+            return splitters.reloadIfModified();
+        }
+        splitters.reload();
+        return true;
+    }
+
+    /**
+     * The decomposition cache of the current dictionary version (for hit/miss/eviction counters),
+     * or <code>null</code> when caching is disabled.
+     */
+    public DecompositionCache getDecompositionCache() {
+        return getSplitter().getCache();
+    }
+
+    /**
+     * Counters and split latencies of the dictionary, aggregated over every splitter and filter
+     * using it.
+     */
+    public CompoundMetrics getMetrics() {
+        return getSplitter().getDictionary().getMetrics();
+    }
+
+    /**
+     * The per token limits and how often they were hit.
+     */
+    public SplitLimits getSplitLimits() {
+        return getSplitter().getLimits();
+    }
+
+    /**
+     * Parse a fallback given as <code>bestSoFar</code> or <code>passThrough</code>.
+     */
+    private SplitLimits.Fallback getFallbackParameter(Map<String, String> args, String name, SplitLimits.Fallback defaultValue) {
+        String value = args.remove(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        switch (value.toLowerCase(Locale.ROOT)) {
+            case "bestsofar":
+                return SplitLimits.Fallback.BEST_SO_FAR;
+            case "passthrough":
+                return SplitLimits.Fallback.PASS_THROUGH;
+            default:
+                throw new IllegalArgumentException("Unknown " + name + ": " + value + ", expected bestSoFar or passThrough");
+        }
+    }
+
+    /**
+     * Parse an output mode given as <code>graph</code> or <code>flat</code>.
+     */
+    private GraphGermanCompoundTokenFilter.OutputMode getOutputModeParameter(Map<String, String> args, String name, GraphGermanCompoundTokenFilter.OutputMode defaultValue) {
+        String value = args.remove(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        switch (value.toLowerCase(Locale.ROOT)) {
+            case "graph":
+                return GraphGermanCompoundTokenFilter.OutputMode.GRAPH;
+            case "flat":
+                return GraphGermanCompoundTokenFilter.OutputMode.FLAT;
+            default:
+                throw new IllegalArgumentException("Unknown " + name + ": " + value + ", expected graph or flat");
+        }
     }
 
     private int getIntParameter(Map<String, String> args, String name, int defaultValue) {
@@ -0,0 +1,283 @@
+package org.apache.lucene.analysis.de.compounds;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A splitter over a dictionary file that can be reloaded while token filters use it.
+ *
+ * The current version of the dictionary and its splitter are published as an immutable
+ * {@link Snapshot} through a volatile field.  Token filters {@link #acquire()} a snapshot when
+ * their stream is reset and release it when the next stream starts or the filter is closed, so a
+ * stream is analyzed by a single version from start to end.  {@link #reload()} maps the new
+ * version and swaps the field, streams started afterwards use it, streams in flight finish on the
+ * previous one, which is unmapped when the last of them releases it.
+ *
+ * Acquiring and releasing a snapshot is a volatile read and a compare and swap on its reference
+ * count, nothing is locked on the analysis path.  Reloads are serialized.
+ *
+ * Each version has its own decomposition cache (with the configured capacity), the
+ * {@link SplitLimits} and the {@link CompoundMetrics} carry over.
+ */
+public final class ReloadableSplitter implements Closeable
+{
+    /**
+     * A version of the dictionary and its splitter, valid until it is closed.
+     */
+    public static final class Snapshot implements Closeable
+    {
+        private final GermanCompoundSplitter splitter;
+        private final long generation;
+        private final Object fileKey;
+
+        /**
+         * Acquired references, one of them held by the reloader while this is the current version.
+         */
+        private final AtomicInteger refCount = new AtomicInteger(1);
+
+        private Snapshot(GermanCompoundSplitter splitter, long generation, Object fileKey)
+        {
+            this.splitter = splitter;
+            this.generation = generation;
+            this.fileKey = fileKey;
+        }
+
+        /**
+         * Take a reference unless the snapshot was already released by everybody.
+         */
+        private boolean tryIncRef()
+        {
+            for (int count = refCount.get(); count > 0; count = refCount.get())
+            {
+                if (refCount.compareAndSet(count, count + 1))
+                    return true;
+            }
+            return false;
+        }
+
+        public GermanCompoundSplitter getSplitter()
+        {
+            return splitter;
+        }
+
+        /**
+         * Number of reloads before this version was loaded.
+         */
+        public long getGeneration()
+        {
+            return generation;
+        }
+
+        /**
+         * Release this snapshot, the last release releases its dictionary.
+         */
+        @Override
+        public void close()
+        {
+            final int count = refCount.decrementAndGet();
+            if (count == 0)
+                splitter.getDictionary().close();
+            else if (count < 0)
+                throw new IllegalStateException("Snapshot already released: " + this);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s(dictionary=%s, generation=%d)", getClass().getSimpleName(),
+                splitter.getDictionary().getSource(), generation);
+        }
+    }
+
+    private final Path file;
+    private final String [] glueMorphemes;
+    private final String [] prefixes;
+    private final long cacheSize;
+    private final SplitLimits limits;
+
+    /**
+     * The current version, <code>null</code> once closed.
+     */
+    private volatile Snapshot current;
+
+    /**
+     * @param file Dictionary file, see {@link CompoundDictionary#acquire(Path)}.
+     * @param cacheSize Capacity of the decomposition cache of each version, see
+     *          {@link CompoundDictionary#getCache(long)}, <code>0</code> disables caching.
+     * @param limits Work limits per token, shared by all versions.
+     */
+    public ReloadableSplitter(Path file, long cacheSize, SplitLimits limits)
+    {
+        this(file, null, cacheSize, limits);
+    }
+
+    /**
+     * @param file Dictionary file, see {@link CompoundDictionary#acquire(Path)}.
+     * @param glueMorphemes Glue morphemes replacing the default ones in every version, see
+     *          {@link CompoundDictionary#withGlueMorphemes(String...)}, may be <code>null</code>.
+     * @param cacheSize Capacity of the decomposition cache of each version, see
+     *          {@link CompoundDictionary#getCache(long)}, <code>0</code> disables caching.
+     * @param limits Work limits per token, shared by all versions.
+     */
+    public ReloadableSplitter(Path file, String [] glueMorphemes, long cacheSize, SplitLimits limits)
+    {
+        this(file, glueMorphemes, null, cacheSize, limits);
+    }
+
+    /**
+     * @param file Dictionary file, see {@link CompoundDictionary#acquire(Path)}.
+     * @param glueMorphemes Glue morphemes replacing the default ones in every version, see
+     *          {@link CompoundDictionary#withGlueMorphemes(String...)}, may be <code>null</code>.
+     * @param prefixes Compound prefixes replacing the compiled ones in every version, see
+     *          {@link CompoundDictionary#withPrefixes(String...)}, may be <code>null</code>.
+     * @param cacheSize Capacity of the decomposition cache of each version, see
+     *          {@link CompoundDictionary#getCache(long)}, <code>0</code> disables caching.
+     * @param limits Work limits per token, shared by all versions.
+     */
+    public ReloadableSplitter(Path file, String [] glueMorphemes, String [] prefixes, long cacheSize,
+        SplitLimits limits)
+    {
+        this.file = file.toAbsolutePath().normalize();
+        this.glueMorphemes = glueMorphemes;
+        this.prefixes = prefixes;
+        this.cacheSize = cacheSize;
+        this.limits = Objects.requireNonNull(limits, "limits");
+        final Object fileKey = fileKey();
+        this.current = snapshot(CompoundDictionary.acquire(this.file), 0, fileKey);
+    }
+
+    private Snapshot snapshot(CompoundDictionary loaded, long generation, Object fileKey)
+    {
+        CompoundDictionary dictionary = loaded;
+        if (glueMorphemes != null)
+        {
+            // the variant takes its own reference.
+            dictionary = loaded.withGlueMorphemes(glueMorphemes);
+            loaded.close();
+        }
+        if (prefixes != null)
+        {
+            final CompoundDictionary variant = dictionary.withPrefixes(prefixes);
+            dictionary.close();
+            dictionary = variant;
+        }
+        return new Snapshot(new GermanCompoundSplitter(dictionary,
+            cacheSize > 0 ? dictionary.getCache(cacheSize) : null, limits), generation, fileKey);
+    }
+
+    /**
+     * Identity of the dictionary file: its inode (where available), modification time and size.
+     */
+    private Object fileKey()
+    {
+        try
+        {
+            final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return List.of(String.valueOf(attributes.fileKey()),
+                attributes.lastModifiedTime(), attributes.size());
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Failed to read attributes of " + file, e);
+        }
+    }
+
+    /**
+     * Acquire the current version, every call must be paired with {@link Snapshot#close()}.
+     */
+    public Snapshot acquire()
+    {
+        while (true)
+        {
+            final Snapshot snapshot = current;
+            if (snapshot == null)
+            {
+                throw new IllegalStateException("Splitter closed: " + file);
+            }
+            // fails only if a reload released the snapshot after we read it, retry with the new one.
+            if (snapshot.tryIncRef())
+                return snapshot;
+        }
+    }
+
+    /**
+     * The splitter of the current version.  Only safe to use until the next reload, token filters
+     * acquire a {@link Snapshot} instead.
+     */
+    public GermanCompoundSplitter getSplitter()
+    {
+        final Snapshot snapshot = current;
+        if (snapshot == null)
+        {
+            throw new IllegalStateException("Splitter closed: " + file);
+        }
+        return snapshot.getSplitter();
+    }
+
+    public SplitLimits getLimits()
+    {
+        return limits;
+    }
+
+    /**
+     * Load the dictionary file again and make it the current version.  A file that fails to load
+     * leaves the current version in place.
+     *
+     * @return The generation of the new version.
+     */
+    public synchronized long reload()
+    {
+        final Snapshot previous = current;
+        if (previous == null)
+        {
+            throw new IllegalStateException("Splitter closed: " + file);
+        }
+        final Object fileKey = fileKey();
+        current = snapshot(CompoundDictionary.reload(file), previous.getGeneration() + 1, fileKey);
+        previous.close();
+        return previous.getGeneration() + 1;
+    }
+
+    /**
+     * Reload the dictionary file if it was replaced or modified since the current version was
+     * loaded, for periodic checks.
+     *
+     * @return Whether the file was reloaded.
+     */
+    public synchronized boolean reloadIfModified()
+    {
+        final Snapshot snapshot = current;
+        if (snapshot == null || snapshot.fileKey.equals(fileKey()))
+            return false;
+        reload();
+        return true;
+    }
+
+    /**
+     * Release the current version, snapshots still held stay valid until they are closed.
+     */
+    @Override
+    public synchronized void close()
+    {
+        final Snapshot snapshot = current;
+        if (snapshot != null)
+        {
+            current = null;
+            snapshot.close();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        final Snapshot snapshot = current;
+        return String.format("%s(file=%s, generation=%s)", getClass().getSimpleName(), file,
+            snapshot == null ? "closed" : String.valueOf(snapshot.getGeneration()));
+    }
+}
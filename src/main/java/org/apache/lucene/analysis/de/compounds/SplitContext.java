@@ -0,0 +1,557 @@
+package org.apache.lucene.analysis.de.compounds;
+
+import java.util.Arrays;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.FST.BytesReader;
+
+/**
+ * Reusable state and output buffers of {@link GermanCompoundSplitter#split(char[], int, int, SplitContext)}.
+ *
+ * The splitter itself only holds immutable dictionary data, everything that changes while a word
+ * is decomposed lives here, so one splitter can serve any number of threads without locking.
+ * A context must not be shared between threads, but should be reused for every term a thread
+ * splits: all buffers only grow, so once warmed up splitting does not allocate.
+ *
+ * After a split the context holds the decompositions as split points, ordered like
+ * {@link GermanCompoundSplitter#split(CharSequence)}: by number of parts, descending, then by
+ * length of the first part, ascending.  Part offsets are char offsets relative to the start of the
+ * split term, glue morphemes between parts are not covered by any part.
+ *
+ * <pre>
+ *   int count = splitter.split(buffer, 0, length, context);
+ *   for (int d = 0; d &lt; count; d++)
+ *       for (int p = 0; p &lt; context.partCount(d); p++)
+ *           emit(buffer, context.partStart(d, p), context.partEnd(d, p));
+ * </pre>
+ */
+public final class SplitContext
+{
+    /**
+     * The current term: the caller's buffer (never copied), the term offset in it and its length
+     * in chars.  The splitter reads it backwards and folds case on the fly.
+     */
+    char [] buffer;
+    int offset;
+    int termLength;
+
+    /**
+     * This array stores the minimum number of decomposition words during traversals to
+     * avoid splitting a larger word into smaller chunks.
+     */
+    int [] maxPaths = new int [17];
+
+    /**
+     * The lattice over char offsets of the term: for every offset the start offsets of all
+     * dictionary words and glue morphemes ending there, computed lazily, at most once per offset.
+     * Edges of an offset are stored as a run in the edge pool, <code>wordCount[end] == -1</code>
+     * marks offsets that were not walked yet.  Word edges carry the weight of their word (see
+     * {@link CompoundDictionary#getWordCost(long)}), glue edges a weight of zero.
+     */
+    int [] wordFirst = new int [17];
+    int [] wordCount = new int [17];
+    int [] glueFirst = new int [17];
+    int [] glueCount = new int [17];
+    int [] edgePool = new int [32];
+    int [] edgeWeights = new int [32];
+    int edgePoolSize;
+
+    /**
+     * Glue morpheme starts found while walking words in a merged dictionary, before they are
+     * added to the edge pool after the word edges.
+     */
+    final int [] glueStarts = new int [CompoundDictionary.MAX_GLUE_LENGTH];
+
+    /**
+     * Offsets reached from the end of the term, by a word ({@link #REACH_WORD}) and/or a glue
+     * morpheme ({@link #REACH_GLUE}), only those are walked.
+     */
+    byte [] reach = new byte [17];
+    static final byte REACH_WORD = 1, REACH_GLUE = 2;
+
+    /**
+     * Reachability of the start of the term from a reached offset: ending with a word
+     * ({@link #canCompleteWord}) or with a glue morpheme ({@link #canCompleteGlue}).
+     */
+    byte [] canCompleteWord = new byte [17];
+    byte [] canCompleteGlue = new byte [17];
+    static final byte UNKNOWN = 0, YES = 1, NO = 2;
+
+    /**
+     * Stack of decomposition chunks (char offsets and type), pushed from the end of the term.
+     */
+    int [] chunkStarts = new int [8];
+    int [] chunkEnds = new int [8];
+    boolean [] chunkGlue = new boolean [8];
+    int depth;
+
+    /**
+     * Stack of the enumeration: per frame the offset whose word (or glue) edges it iterates, the
+     * next edge and the depth of the chunk stack it runs on.
+     */
+    int [] frameOffsets = new int [8];
+    int [] frameEdges = new int [8];
+    int [] frameDepths = new int [8];
+    boolean [] frameGlue = new boolean [8];
+    int frames;
+
+    /**
+     * Ends of the prefixes detached from the start of the term, every decomposition emitted
+     * starts with them.
+     */
+    int [] prefixEnds = new int [4];
+    int prefixCount;
+
+    /**
+     * State of the best-k search ({@link GermanCompoundSplitter#splitBest}): for every offset and
+     * chunk type (word or glue) the k cheapest completions of the term ending with such a chunk
+     * there, ordered by cost.  List <code>2 * offset + type</code> occupies the k slots from
+     * <code>list * k</code>, each slot holds a cost, the start of its chunk and the slot of the
+     * completion it continues with (<code>-1</code> at the start of the term).
+     * <code>bestCount[list] == -1</code> marks lists that were not computed yet.
+     */
+    int bestK;
+    int [] bestCount = new int [34];
+    long [] bestCost = new long [34];
+    int [] bestStart = new int [34];
+    int [] bestNext = new int [34];
+
+    /**
+     * Remaining enumeration steps and FST arcs for the current term (see {@link SplitLimits}),
+     * the arc budget it started with, and whether a budget ran out.
+     */
+    int steps;
+    int arcs;
+    int arcBudget;
+    boolean truncated;
+
+    /**
+     * Reusable FST traversal state for the dictionary used last.
+     */
+    FST<Object> surfaceForms;
+    FST<Object> glueMorphemes;
+    BytesReader wordsReader;
+    BytesReader glueReader;
+    final FST.Arc<Object> arc = new FST.Arc<>();
+    final FST.Arc<Object> scratch = new FST.Arc<>();
+
+    /**
+     * Reusable traversal state for the decomposition table used last.
+     */
+    FST<Object> table;
+    BytesReader tableBytesReader;
+    final FST.Arc<Object> tableArc = new FST.Arc<>();
+
+    /**
+     * Reusable traversal state for the compound prefixes used last.
+     */
+    FST<Object> prefixes;
+    BytesReader prefixBytesReader;
+    final FST.Arc<Object> prefixArc = new FST.Arc<>();
+
+    /**
+     * Output: parts of all decompositions, the first part and part count of each decomposition
+     * and the order in which decompositions are returned.
+     */
+    int [] partStarts = new int [16];
+    int [] partEnds = new int [16];
+    int partsSize;
+    int [] firstPart = new int [4];
+    int [] partCounts = new int [4];
+    int [] order = new int [4];
+    int count;
+
+    /**
+     * Probe key for cache lookups on the folded term.
+     */
+    final DecompositionCache.CacheKey cacheKey = new DecompositionCache.CacheKey();
+
+    /**
+     * Load a term and clear the lattice and the output.
+     */
+    void reset(char [] buffer, int offset, int len)
+    {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.termLength = len;
+
+        maxPaths = ArrayUtil.grow(maxPaths, len + 1);
+        Arrays.fill(maxPaths, 0, len + 1, Integer.MAX_VALUE);
+
+        if (wordCount.length < len + 1)
+        {
+            final int size = ArrayUtil.oversize(len + 1, Integer.BYTES);
+            wordFirst = new int [size];
+            wordCount = new int [size];
+            glueFirst = new int [size];
+            glueCount = new int [size];
+            reach = new byte [size];
+            canCompleteWord = new byte [size];
+            canCompleteGlue = new byte [size];
+        }
+        Arrays.fill(wordCount, 0, len + 1, -1);
+        Arrays.fill(reach, 0, len + 1, (byte) 0);
+        Arrays.fill(canCompleteWord, 0, len + 1, UNKNOWN);
+        Arrays.fill(canCompleteGlue, 0, len + 1, UNKNOWN);
+        edgePoolSize = 0;
+
+        truncated = false;
+        arcs = arcBudget = 0;
+        depth = 0;
+        prefixCount = 0;
+        partsSize = 0;
+        count = 0;
+        cacheKey.set(buffer, offset, len);
+    }
+
+    /**
+     * Number of decompositions found for the last term.
+     */
+    public int count()
+    {
+        return count;
+    }
+
+    /**
+     * Number of parts of the given decomposition.
+     */
+    public int partCount(int decomposition)
+    {
+        return partCounts[order[decomposition]];
+    }
+
+    /**
+     * Char offset (relative to the term start) of the first char of a part.
+     */
+    public int partStart(int decomposition, int part)
+    {
+        return partStarts[firstPart[order[decomposition]] + part];
+    }
+
+    /**
+     * Char offset (relative to the term start) after the last char of a part.
+     */
+    public int partEnd(int decomposition, int part)
+    {
+        return partEnds[firstPart[order[decomposition]] + part];
+    }
+
+    /**
+     * Char offset (relative to the term start) of the boundary a part follows: the end of the
+     * previous part, <code>0</code> for the first one.  Differs from {@link #partStart(int, int)}
+     * by the glue morpheme joining the parts, if any.
+     */
+    public int partBoundary(int decomposition, int part)
+    {
+        return part == 0 ? 0 : partEnd(decomposition, part - 1);
+    }
+
+    /**
+     * Length of the last term in chars.
+     */
+    public int termLength()
+    {
+        return termLength;
+    }
+
+    /**
+     * Whether the last split ran out of its work budget, the decompositions are then the ones
+     * found up to that point, or none (see {@link SplitLimits.Fallback}).
+     */
+    public boolean truncated()
+    {
+        return truncated;
+    }
+
+    BytesReader tableReader(FST<Object> words)
+    {
+        if (table != words)
+        {
+            table = words;
+            tableBytesReader = words.getBytesReader();
+        }
+        return tableBytesReader;
+    }
+
+    BytesReader prefixReader(FST<Object> fst)
+    {
+        if (prefixes != fst)
+        {
+            prefixes = fst;
+            prefixBytesReader = fst.getBytesReader();
+        }
+        return prefixBytesReader;
+    }
+
+    /**
+     * Detach a prefix from the start of the term, or from the remainder after the prefixes
+     * detached before: decompositions emitted from now on start with the prefixes.
+     *
+     * @param end Offset of the end of the prefix.
+     */
+    void pushPrefix(int end)
+    {
+        prefixEnds = ArrayUtil.grow(prefixEnds, prefixCount + 1);
+        prefixEnds[prefixCount++] = end;
+    }
+
+    void addEdge(int start, int weight)
+    {
+        if (edgePoolSize == edgePool.length)
+        {
+            edgePool = ArrayUtil.grow(edgePool, edgePoolSize + 1);
+            edgeWeights = ArrayUtil.growExact(edgeWeights, edgePool.length);
+        }
+        edgePool[edgePoolSize] = start;
+        edgeWeights[edgePoolSize] = weight;
+        edgePoolSize++;
+    }
+
+    /**
+     * Clear the best-k lists of the current term.
+     */
+    void resetBest(int k)
+    {
+        final int lists = 2 * (termLength + 1);
+        bestK = k;
+        bestCount = ArrayUtil.grow(bestCount, lists);
+        Arrays.fill(bestCount, 0, lists, -1);
+        if (bestCost.length < lists * k)
+        {
+            final int size = ArrayUtil.oversize(lists * k, Long.BYTES);
+            bestCost = new long [size];
+            bestStart = new int [size];
+            bestNext = new int [size];
+        }
+    }
+
+    /**
+     * Offer a completion to a best-k list, keeping the list ordered by cost (stable for equal
+     * costs) and at most k long.
+     *
+     * @return <code>false</code> if the list is full and the completion is not cheaper than any
+     *          of its completions.
+     */
+    boolean offerBest(int list, long cost, int start, int next)
+    {
+        final int base = list * bestK;
+        final int count = bestCount[list];
+        int i = count;
+        if (count == bestK)
+        {
+            if (cost >= bestCost[base + count - 1])
+                return false;
+            i--;
+        }
+        else
+        {
+            bestCount[list] = count + 1;
+        }
+        for (; i > 0 && bestCost[base + i - 1] > cost; i--)
+        {
+            bestCost[base + i] = bestCost[base + i - 1];
+            bestStart[base + i] = bestStart[base + i - 1];
+            bestNext[base + i] = bestNext[base + i - 1];
+        }
+        bestCost[base + i] = cost;
+        bestStart[base + i] = start;
+        bestNext[base + i] = next;
+        return true;
+    }
+
+    /**
+     * Record the completion in a best-k slot as a decomposition.
+     */
+    void emitBest(int slot)
+    {
+        depth = 0;
+        for (int s = slot; s >= 0; s = bestNext[s])
+        {
+            final int list = s / bestK;
+            pushChunk(bestStart[s], list >> 1, (list & 1) != 0);
+        }
+        emit();
+    }
+
+    /**
+     * Drop all decompositions of the current term.
+     */
+    void clearDecompositions()
+    {
+        partsSize = 0;
+        count = 0;
+    }
+
+    void pushFrame(int offset, boolean glue, int depth)
+    {
+        if (frames == frameOffsets.length)
+        {
+            frameOffsets = ArrayUtil.grow(frameOffsets, frames + 1);
+            frameEdges = ArrayUtil.growExact(frameEdges, frameOffsets.length);
+            frameDepths = ArrayUtil.growExact(frameDepths, frameOffsets.length);
+            frameGlue = Arrays.copyOf(frameGlue, frameOffsets.length);
+        }
+        frameOffsets[frames] = offset;
+        // word edges are iterated from the last (longest word) down, glue edges up.
+        frameEdges[frames] = glue ? 0 : wordCount[offset];
+        frameDepths[frames] = depth;
+        frameGlue[frames] = glue;
+        frames++;
+    }
+
+    void pushChunk(int start, int end, boolean glue)
+    {
+        if (depth == chunkStarts.length)
+        {
+            chunkStarts = ArrayUtil.grow(chunkStarts, depth + 1);
+            chunkEnds = ArrayUtil.growExact(chunkEnds, chunkStarts.length);
+            chunkGlue = Arrays.copyOf(chunkGlue, chunkStarts.length);
+        }
+        chunkStarts[depth] = start;
+        chunkEnds[depth] = end;
+        chunkGlue[depth] = glue;
+        depth++;
+    }
+
+    /**
+     * Record the chunks on the stack as a decomposition.  Chunks are pushed from the end of the
+     * term, so the stack is walked from the top to produce parts from left to right.  Glue
+     * morphemes and a single word covering the whole term are not recorded.
+     */
+    void emit()
+    {
+        final int first = partsSize;
+        for (int p = 0; p < prefixCount; p++)
+        {
+            addPart(p == 0 ? 0 : prefixEnds[p - 1], prefixEnds[p]);
+        }
+        for (int c = depth; --c >= 0;)
+        {
+            if (chunkGlue[c])
+                continue;
+            final int start = chunkStarts[c];
+            final int end = chunkEnds[c];
+            // skip the word if its identical to the input.
+            if (start == 0 && end == termLength)
+                continue;
+            addPart(start, end);
+        }
+        // with prefixes, the remainder may be split at the prefix already.
+        if (prefixCount > 0 && contains(first, partsSize - first))
+            partsSize = first;
+        else if (partsSize > first)
+            addDecomposition(first, partsSize - first);
+    }
+
+    /**
+     * Whether the parts from <code>first</code> on are recorded as a decomposition already.
+     */
+    private boolean contains(int first, int parts)
+    {
+        for (int d = 0; d < count; d++)
+        {
+            final int from = firstPart[d];
+            if (partCounts[d] == parts
+                && Arrays.equals(partStarts, from, from + parts, partStarts, first, first + parts)
+                && Arrays.equals(partEnds, from, from + parts, partEnds, first, first + parts))
+                return true;
+        }
+        return false;
+    }
+
+    void addPart(int start, int end)
+    {
+        if (partsSize == partStarts.length)
+        {
+            partStarts = ArrayUtil.grow(partStarts, partsSize + 1);
+            partEnds = ArrayUtil.growExact(partEnds, partStarts.length);
+        }
+        partStarts[partsSize] = start;
+        partEnds[partsSize] = end;
+        partsSize++;
+    }
+
+    void addDecomposition(int first, int parts)
+    {
+        if (count == firstPart.length)
+        {
+            firstPart = ArrayUtil.grow(firstPart, count + 1);
+            partCounts = ArrayUtil.growExact(partCounts, firstPart.length);
+            order = ArrayUtil.growExact(order, firstPart.length);
+        }
+        firstPart[count] = first;
+        partCounts[count] = parts;
+        order[count] = count;
+        count++;
+    }
+
+    /**
+     * Order decompositions by number of parts (descending), then by length of the first part
+     * (ascending).  Insertion sort: stable and there are only a handful of decompositions.
+     */
+    void sort()
+    {
+        for (int i = 1; i < count; i++)
+        {
+            final int d = order[i];
+            int j = i;
+            while (j > 0 && compare(order[j - 1], d) > 0)
+            {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = d;
+        }
+    }
+
+    private int compare(int a, int b)
+    {
+        if (partCounts[a] != partCounts[b])
+            return Integer.compare(partCounts[b], partCounts[a]);
+        return Integer.compare(partEnds[firstPart[a]] - partStarts[firstPart[a]],
+            partEnds[firstPart[b]] - partStarts[firstPart[b]]);
+    }
+
+    /**
+     * Encode the (ordered) decompositions: count, then part count and part offsets of each.
+     */
+    int [] encode()
+    {
+        int [] encoded = new int [1 + count + 2 * partsSize];
+        int pos = 0;
+        encoded[pos++] = count;
+        for (int d = 0; d < count; d++)
+        {
+            final int parts = partCount(d);
+            encoded[pos++] = parts;
+            for (int p = 0; p < parts; p++)
+            {
+                encoded[pos++] = partStart(d, p);
+                encoded[pos++] = partEnd(d, p);
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Replace the decompositions with ones produced by {@link #encode()}.
+     */
+    void decode(int [] encoded)
+    {
+        partsSize = 0;
+        count = 0;
+        int pos = 1;
+        for (int d = 0, n = encoded[0]; d < n; d++)
+        {
+            final int parts = encoded[pos++];
+            final int first = partsSize;
+            for (int p = 0; p < parts; p++)
+            {
+                addPart(encoded[pos], encoded[pos + 1]);
+                pos += 2;
+            }
+            addDecomposition(first, parts);
+        }
+    }
+}
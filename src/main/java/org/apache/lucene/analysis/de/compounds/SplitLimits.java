@@ -0,0 +1,159 @@
+package org.apache.lucene.analysis.de.compounds;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits on the work spent on a single token and on the sub-words emitted for it, with counters of
+ * how often each limit was hit.
+ *
+ * <ul>
+ *   <li><code>maxSteps</code>: decompositions explored, in chunk expansions of the enumeration.
+ *   By default the budget grows with the square of the term length, see
+ *   {@link GermanCompoundSplitter#maxSteps(int)}.</li>
+ *   <li><code>maxArcs</code>: FST arcs followed while the lattice is built, unlimited by default.</li>
+ *   <li><code>maxSubwords</code>: sub-word tokens emitted by {@link GraphGermanCompoundTokenFilter}
+ *   for one input token, unlimited by default.</li>
+ * </ul>
+ *
+ * A value of zero or less selects the default.  When a limit is hit the {@link Fallback} decides
+ * what is returned, either way the outcome only depends on the token, never on timing.  One
+ * instance is shared by a splitter and all filters using it, the counters are thread safe.
+ */
+public final class SplitLimits
+{
+    /**
+     * What a token gets when one of its limits is hit.
+     */
+    public enum Fallback
+    {
+        /**
+         * The decompositions found up to the limit, or the leading sequences of sub-words that
+         * fit into <code>maxSubwords</code>.
+         */
+        BEST_SO_FAR,
+
+        /**
+         * No decompositions, the token passes through unchanged.
+         */
+        PASS_THROUGH
+    }
+
+    private final int maxSteps;
+    private final int maxArcs;
+    private final int maxSubwords;
+    private final Fallback fallback;
+
+    private final LongAdder stepLimitHits = new LongAdder();
+    private final LongAdder arcLimitHits = new LongAdder();
+    private final LongAdder subwordLimitHits = new LongAdder();
+
+    /**
+     * Default limits: the polynomial step budget only, keeping the decompositions found so far.
+     */
+    public SplitLimits()
+    {
+        this(0, 0, 0, Fallback.BEST_SO_FAR);
+    }
+
+    /**
+     * @param maxSteps Decompositions explored per token, <code>0</code> for the default budget.
+     * @param maxArcs FST arcs followed per token, <code>0</code> for no limit.
+     * @param maxSubwords Sub-word tokens emitted per token, <code>0</code> for no limit.
+     * @param fallback What a token gets when a limit is hit.
+     */
+    public SplitLimits(int maxSteps, int maxArcs, int maxSubwords, Fallback fallback)
+    {
+        if (fallback == null)
+        {
+            throw new IllegalArgumentException("fallback must not be null");
+        }
+        this.maxSteps = Math.max(0, maxSteps);
+        this.maxArcs = Math.max(0, maxArcs);
+        this.maxSubwords = Math.max(0, maxSubwords);
+        this.fallback = fallback;
+    }
+
+    /**
+     * The step budget for a term of the given length.
+     */
+    int steps(int length)
+    {
+        return maxSteps > 0 ? maxSteps : GermanCompoundSplitter.maxSteps(length);
+    }
+
+    /**
+     * The arc budget per term.
+     */
+    int arcs()
+    {
+        return maxArcs > 0 ? maxArcs : Integer.MAX_VALUE;
+    }
+
+    public int getMaxSteps()
+    {
+        return maxSteps;
+    }
+
+    public int getMaxArcs()
+    {
+        return maxArcs;
+    }
+
+    public int getMaxSubwords()
+    {
+        return maxSubwords;
+    }
+
+    public Fallback getFallback()
+    {
+        return fallback;
+    }
+
+    void stepLimitHit()
+    {
+        stepLimitHits.increment();
+    }
+
+    void arcLimitHit()
+    {
+        arcLimitHits.increment();
+    }
+
+    void subwordLimitHit()
+    {
+        subwordLimitHits.increment();
+    }
+
+    /**
+     * Number of tokens whose decompositions were cut short by the step budget.
+     */
+    public long stepLimitCount()
+    {
+        return stepLimitHits.sum();
+    }
+
+    /**
+     * Number of tokens whose lattice was cut short by the arc budget.
+     */
+    public long arcLimitCount()
+    {
+        return arcLimitHits.sum();
+    }
+
+    /**
+     * Number of tokens whose sub-words were cut at <code>maxSubwords</code>.
+     */
+    public long subwordLimitCount()
+    {
+        return subwordLimitHits.sum();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s(maxSteps=%d, maxArcs=%d, maxSubwords=%d, fallback=%s, "
+            + "stepLimitHits=%d, arcLimitHits=%d, subwordLimitHits=%d)", getClass().getSimpleName(),
+            maxSteps, maxArcs, maxSubwords, fallback, stepLimitCount(), arcLimitCount(),
+            subwordLimitCount());
+    }
+}
@@ -0,0 +1,447 @@
+package org.apache.lucene.analysis.de.compounds;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.util.FilesystemResourceLoader;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.FSTCompiler;
+import org.apache.lucene.util.fst.NoOutputs;
+
+/**
+ * Test loading and sharing of compound dictionaries.
+ */
+public class TestCompoundDictionary extends TestCase {
+
+    private Path tempDir;
+
+    @Override
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("compound-dictionary");
+    }
+
+    @Override
+    public void tearDown() throws IOException {
+        IOUtils.rm(tempDir);
+    }
+
+    private Path writeDefaultDictionary() throws IOException {
+        Path file = tempDir.resolve("words.dict");
+        CompoundDictionary.getDefault().write(file);
+        return file;
+    }
+
+    /**
+     * A memory mapped dictionary decomposes exactly like the bundled one.
+     */
+    public void testMappedDictionary() throws Exception {
+        Path file = writeDefaultDictionary();
+
+        CompoundDictionary mapped = CompoundDictionary.acquire(file);
+        try {
+            assertSame(mapped, CompoundDictionary.acquire(file));
+            mapped.close();
+
+            GermanCompoundSplitter expected = new GermanCompoundSplitter();
+            GermanCompoundSplitter actual = new GermanCompoundSplitter(mapped);
+            for (String word : TestGermanCompoundSplitter.WORDS) {
+                assertEquals(expected.split(word), actual.split(word));
+            }
+            // the FST bytes are mapped, not copied onto the heap.
+            assertTrue(mapped.ramBytesUsed() < CompoundDictionary.getDefault().ramBytesUsed());
+        } finally {
+            mapped.close();
+        }
+    }
+
+    public void testCorruptDictionaryRejected() throws Exception {
+        Path file = writeDefaultDictionary();
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 0x55;
+        Files.write(file, bytes);
+
+        try {
+            CompoundDictionary.acquire(file).close();
+            fail("corrupt dictionary must not be opened");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof CorruptIndexException);
+        }
+    }
+
+    public void testFactoryDictionaryOption() throws Exception {
+        Path file = writeDefaultDictionary();
+
+        Map<String, String> args = new HashMap<>();
+        args.put("dictionary", file.toString());
+        args.put("preserveOriginal", "false");
+        GraphGermanCompoundTokenFilterFactory factory = new GraphGermanCompoundTokenFilterFactory(args);
+        factory.inform(new FilesystemResourceLoader(tempDir, getClass().getClassLoader()));
+
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader("Reisekosten"));
+        List<String> terms = new ArrayList<>();
+        try (TokenStream stream = factory.create(tokenizer)) {
+            CharTermAttribute termAttr = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                terms.add(termAttr.toString());
+            }
+            stream.end();
+        }
+        assertEquals(List.of("reise", "kosten"), terms);
+
+        // the factory keeps its reference for its lifetime.
+        CompoundDictionary.acquire(file).close();
+    }
+    
+    /**
+     * Resources opened with the resource loader are shared by content.
+     */
+    public void testFactoryResources() throws Exception {
+        Path conf = Files.createDirectory(tempDir.resolve("conf"));
+        CompoundDictionary.getDefault().write(conf.resolve("german.dict"));
+        Files.copy(conf.resolve("german.dict"), conf.resolve("copy.dict"));
+        Files.write(conf.resolve("glue.txt"), List.of("# glue morphemes", "zz"));
+        FilesystemResourceLoader loader = new FilesystemResourceLoader(conf, getClass().getClassLoader());
+
+        List<GraphGermanCompoundTokenFilterFactory> factories = new ArrayList<>();
+        for (String name : List.of("german.dict", "copy.dict")) {
+            Map<String, String> args = new HashMap<>();
+            args.put("dictionary", name);
+            args.put("glueMorphemes", "glue.txt");
+            args.put("preserveOriginal", "false");
+            args.put("cacheSize", "10000");
+            GraphGermanCompoundTokenFilterFactory factory = new GraphGermanCompoundTokenFilterFactory(args);
+            try {
+                factory.create(new WhitespaceTokenizer());
+                fail("resources are loaded by inform()");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            factory.inform(loader);
+            factories.add(factory);
+        }
+        // one dictionary with the same glue morphemes, and its cache.
+        assertSame(factories.get(0).getMetrics(), factories.get(1).getMetrics());
+        assertSame(factories.get(0).getDecompositionCache(), factories.get(1).getDecompositionCache());
+        assertNotSame(CompoundDictionary.getDefault().getMetrics(), factories.get(0).getMetrics());
+
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader("Reisezzkosten Kundenberater"));
+        List<String> terms = new ArrayList<>();
+        try (TokenStream stream = factories.get(0).create(tokenizer)) {
+            CharTermAttribute termAttr = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                terms.add(termAttr.toString());
+            }
+            stream.end();
+        }
+        assertEquals(List.of("reise", "kosten", "kunden", "berater"), terms);
+    }
+
+    /**
+     * Metrics are aggregated per dictionary and registered as an MBean until it is released.
+     */
+    public void testMetrics() throws Exception {
+        Path file = writeDefaultDictionary();
+
+        Map<String, String> args = new HashMap<>();
+        args.put("dictionary", file.toString());
+        args.put("preserveOriginal", "false");
+        args.put("jmx", "true");
+        GraphGermanCompoundTokenFilterFactory factory = new GraphGermanCompoundTokenFilterFactory(args);
+        factory.inform(new FilesystemResourceLoader(tempDir, getClass().getClassLoader()));
+        CompoundDictionary dictionary = CompoundDictionary.acquire(file);
+        CompoundMetrics metrics = factory.getMetrics();
+        assertSame(dictionary.getMetrics(), metrics);
+        List<Integer> splits = new ArrayList<>();
+        CompoundMetrics.Listener listener = (length, decompositions, arcs, nanos) -> splits.add(length);
+        metrics.addListener(listener);
+
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader("Reisekosten ab Haus"));
+        try (TokenStream stream = factory.create(tokenizer)) {
+            stream.reset();
+            while (stream.incrementToken()) {
+                // consume
+            }
+            stream.end();
+        }
+        assertEquals(3, metrics.getTermsSeen());
+        assertEquals(2, metrics.getTermsSkipped());
+        assertEquals(1, metrics.getSplitAttempts());
+        assertEquals(1, metrics.getTermsDecomposed());
+        assertEquals(1, metrics.getDecompositionsFound());
+        // reise, kosten, ab, Haus
+        assertEquals(4, metrics.getTokensEmitted());
+        assertEquals(List.of(11), splits);
+
+        // a search (with an arc limit, the precomputed table is not consulted) counts its arcs.
+        metrics.removeListener(listener);
+        GermanCompoundSplitter splitter = new GermanCompoundSplitter(dictionary, null,
+                new SplitLimits(0, 100000, 0, SplitLimits.Fallback.BEST_SO_FAR));
+        assertFalse(splitter.split("Finanzgrundsatzangelegenheiten").isEmpty());
+        assertEquals(2, metrics.getSplitAttempts());
+        assertTrue(metrics.getArcsTraversed() > 0);
+        assertEquals(1, splits.size());
+        assertTrue(metrics.getSplitLatencyP99Nanos() >= metrics.getSplitLatencyP50Nanos());
+        assertTrue(metrics.getMaxSplitLatencyNanos() > 0);
+
+        javax.management.ObjectName name = metrics.registerMBean();
+        javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+        assertEquals(3L, server.getAttribute(name, "TermsSeen"));
+
+        // release our reference and the factory's, the MBean goes with the dictionary.
+        dictionary.close();
+        dictionary.close();
+        assertFalse(server.isRegistered(name));
+    }
+
+    /**
+     * Reloading swaps the dictionary for new streams, streams in flight finish on the previous one.
+     */
+    public void testReloadDictionary() throws Exception {
+        Path words = tempDir.resolve("words.txt");
+        Files.write(words, List.of("reise", "kosten"));
+        Path first = tempDir.resolve("first.dict");
+        CompileCompoundDictionaries.main(new String[] {"--output", first.toString(), words.toString()});
+        Files.write(words, List.of("konto", "stand"));
+        Path second = tempDir.resolve("second.dict");
+        CompileCompoundDictionaries.main(new String[] {"--output", second.toString(), words.toString()});
+        Path file = tempDir.resolve("live.dict");
+        Files.copy(first, file);
+
+        CompoundDictionary last;
+        try (ReloadableSplitter splitters = new ReloadableSplitter(file, 1024, new SplitLimits())) {
+            CompoundMetrics metrics = splitters.getSplitter().getDictionary().getMetrics();
+            Tokenizer tokenizer = new WhitespaceTokenizer();
+            tokenizer.setReader(new StringReader("Reisekosten Kontostand"));
+            List<String> inFlight = new ArrayList<>();
+            try (TokenStream stream = new GraphGermanCompoundTokenFilter(tokenizer, splitters, 5, false, false, 0)) {
+                CharTermAttribute termAttr = stream.addAttribute(CharTermAttribute.class);
+                stream.reset();
+                assertTrue(stream.incrementToken());
+                inFlight.add(termAttr.toString());
+
+                // replace the file atomically, then swap.
+                Path next = tempDir.resolve("live.dict.tmp");
+                Files.copy(second, next);
+                Files.move(next, file, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+                assertTrue(splitters.reloadIfModified());
+                assertFalse(splitters.reloadIfModified());
+                assertEquals(List.of(List.of("konto", "stand")), splitters.getSplitter().split("Kontostand"));
+                assertSame(metrics, splitters.getSplitter().getDictionary().getMetrics());
+
+                while (stream.incrementToken()) {
+                    inFlight.add(termAttr.toString());
+                }
+                stream.end();
+            }
+            assertEquals(List.of("reise", "kosten", "Kontostand"), inFlight);
+
+            ReloadableSplitter.Snapshot snapshot = splitters.acquire();
+            try {
+                assertEquals(1, snapshot.getGeneration());
+                assertEquals(List.of(), snapshot.getSplitter().split("Reisekosten"));
+            } finally {
+                snapshot.close();
+            }
+            last = splitters.getSplitter().getDictionary();
+        }
+        // every version was released, the file is loaded again.
+        try (CompoundDictionary dictionary = CompoundDictionary.acquire(file)) {
+            assertNotSame(last, dictionary);
+        }
+    }
+
+    /**
+     * Compile a dictionary from several inputs with a tiny sort buffer.
+     */
+    public void testCompileDictionary() throws Exception {
+        Path first = tempDir.resolve("first.txt");
+        Files.write(first, List.of("# comment", "Reise\tNOUN", "kosten", "Kosten"));
+        Path second = tempDir.resolve("second.txt");
+        Files.write(second, List.of("reise", "konto", "stand"));
+        Path file = tempDir.resolve("compiled.dict");
+        
+        CompileCompoundDictionaries.main(new String[] {"--output", file.toString(),
+            "--threads", "2", "--ram", "1", "--temp", tempDir.toString(),
+            first.toString(), second.toString()});
+        
+        try (CompoundDictionary dictionary = CompoundDictionary.acquire(file)) {
+            assertEquals(CompoundDictionary.Format.MERGED, dictionary.getFormat());
+            // a head and a tail gram for each of the 4 distinct words.
+            assertEquals(8, dictionary.getPrefilter().getKeyCount());
+            GermanCompoundSplitter splitter = new GermanCompoundSplitter(dictionary);
+            assertEquals(List.of(List.of("reise", "kosten")), splitter.split("Reisekosten"));
+            assertEquals(List.of(List.of("konto", "stand")), splitter.split("Kontostand"));
+            // glue morphemes are compiled into the same FST.
+            assertEquals(List.of(List.of("reise", "kosten")), splitter.split("Reisenkosten"));
+            assertEquals(List.of(), splitter.split("Reisekonten"));
+        }
+    }
+    
+    /**
+     * The corpus tool counts the tokens of all chunks and decompounds the distinct ones.
+     */
+    public void testDecompoundCorpus() throws Exception {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            lines.add("Die Reisekosten der Finanzermittlung.");
+            if (i % 2 == 0) {
+                lines.add("Kundenberater, Reisekosten!");
+            }
+        }
+        Path corpus = tempDir.resolve("corpus.txt");
+        Files.write(corpus, lines);
+        Path output = tempDir.resolve("decompositions.tsv");
+
+        // 1kb chunks, the corpus is split into several of them.
+        DecompoundCorpus.main(new String[] {"--output", output.toString(), "--threads", "3",
+            "--chunk", "1", corpus.toString()});
+
+        assertEquals(List.of(
+                "Reisekosten\t150\treise+kosten",
+                "Die\t100\t",
+                "Finanzermittlung\t100\tfinanz+ermittlung",
+                "der\t100\t",
+                "Kundenberater\t50\tkunden+berater"),
+            Files.readAllLines(output));
+    }
+    
+    /**
+     * Precomputed decompositions of frequent words are stored with the dictionary and returned
+     * exactly like a search would.
+     */
+    public void testDecompositionTable() throws Exception {
+        Path words = tempDir.resolve("words.txt");
+        Files.write(words, List.of("reise", "kosten", "konto", "stand", "stube", "tube", "sünde", "sünder", "recke", "ecke"));
+        Path frequencies = tempDir.resolve("frequencies.txt");
+        Files.write(frequencies, List.of("Reisekosten\t50", "kontostand\t20", "Sünderecke\t10", "stand\t5", "Haus\t5"));
+        Path file = tempDir.resolve("precomputed.dict");
+
+        CompileCompoundDictionaries.main(new String[] {"--output", file.toString(),
+            "--precompute-words", frequencies.toString(), "--precompute", "4", "--temp", tempDir.toString(),
+            words.toString()});
+
+        try (CompoundDictionary dictionary = CompoundDictionary.acquire(file)) {
+            // the prefilter rejects "stand", it is not looked up.
+            assertEquals(3, dictionary.getDecompositionTable().size());
+            GermanCompoundSplitter splitter = new GermanCompoundSplitter(dictionary);
+            // with explicit limits the table is bypassed and every word is searched.
+            GermanCompoundSplitter searching = new GermanCompoundSplitter(dictionary, null,
+                new SplitLimits(1000, 0, 0, SplitLimits.Fallback.BEST_SO_FAR));
+            for (String word : List.of("Reisekosten", "REISEKOSTEN", "Kontostand", "Sünderecke", "Stubekosten", "stand")) {
+                assertEquals(word, searching.split(word), splitter.split(word));
+            }
+            assertEquals(List.of(List.of("reise", "kosten")), splitter.split("Reisekosten"));
+            assertEquals(2, splitter.split("Sünderecke").size());
+        }
+    }
+    
+    /**
+     * Word frequencies compiled into the dictionary rank the decompositions of the best-k search.
+     */
+    public void testWeightedDictionary() throws Exception {
+        Path words = tempDir.resolve("words.txt");
+        Files.write(words, List.of("wach", "wachs", "stube", "tube"));
+        Path frequencies = tempDir.resolve("frequencies.txt");
+        Files.write(frequencies, List.of("Wach\t50", "wachs\t2000", "stube\t100", "tube\t5000"));
+        Path file = tempDir.resolve("weighted.dict");
+        
+        CompileCompoundDictionaries.main(new String[] {"--output", file.toString(),
+            "--frequencies", frequencies.toString(), "--temp", tempDir.toString(), words.toString()});
+        
+        try (CompoundDictionary dictionary = CompoundDictionary.acquire(file)) {
+            assertTrue(dictionary.isWeighted());
+            GermanCompoundSplitter splitter = new GermanCompoundSplitter(dictionary);
+            // wach+s+tube has a glue morpheme.
+            assertEquals(List.of(List.of("wachs", "tube"), List.of("wach", "tube"), List.of("wach", "stube")),
+                splitter.splitBest("Wachstube", 3));
+            assertEquals(List.of(List.of("wachs", "tube")), splitter.splitBest("Wachstube", 1));
+        }
+    }
+    
+    /**
+     * Dictionaries in the legacy format, with left-to-right and right-to-left entries, still load.
+     */
+    public void testBidirectionalFormat() throws Exception {
+        List<String> entries = new ArrayList<>();
+        for (String word : List.of("reise", "kosten")) {
+            entries.add(word + GermanCompoundSplitter.LTR_SYMBOL);
+            entries.add(new StringBuilder(word).reverse().append(GermanCompoundSplitter.RTL_SYMBOL).toString());
+        }
+        Collections.sort(entries);
+        FSTCompiler<Object> compiler = new FSTCompiler.Builder<>(FST.INPUT_TYPE.BYTE4,
+            NoOutputs.getSingleton()).build();
+        IntsRefBuilder scratch = new IntsRefBuilder();
+        for (String entry : entries) {
+            compiler.add(GermanCompoundSplitter.UTF16ToUTF32(entry, scratch).get(),
+                NoOutputs.getSingleton().getNoOutput());
+        }
+        FST<Object> fst = FST.fromFSTReader(compiler.compile(), compiler.getFSTReader());
+
+        Path file = tempDir.resolve("legacy.dict");
+        CompoundDictionary.write(fst, CompoundDictionary.Format.BIDIRECTIONAL, null, file);
+        try (CompoundDictionary dictionary = CompoundDictionary.acquire(file)) {
+            assertEquals(CompoundDictionary.Format.BIDIRECTIONAL, dictionary.getFormat());
+            GermanCompoundSplitter splitter = new GermanCompoundSplitter(dictionary);
+            assertEquals(List.of(List.of("reise", "kosten")), splitter.split("Reisekosten"));
+            // left-to-right entries are not words.
+            assertEquals(List.of(), splitter.split("Esiertsoken"));
+        }
+    }
+
+    /**
+     * The prefilter never rejects a compound and rejects most other terms.  The time it saves per
+     * rejected term is measured by the SplitBenchmark of the benchmarks module.
+     */
+    public void testPrefilter() throws Exception {
+        CompoundDictionary bundled = CompoundDictionary.getDefault();
+        CompoundPrefilter prefilter = bundled.getPrefilter();
+        assertNotNull(prefilter);
+        
+        // a dictionary file without prefilter, and one with it.
+        Path plainFile = tempDir.resolve("plain.dict");
+        CompoundDictionary.write(bundled.getSurfaceForms(), bundled.getFormat(), bundled.getNormalizer(), null, plainFile);
+        Path filteredFile = tempDir.resolve("filtered.dict");
+        CompoundDictionary.write(bundled.getSurfaceForms(), bundled.getFormat(), bundled.getNormalizer(), prefilter, filteredFile);
+        
+        try (CompoundDictionary plain = CompoundDictionary.acquire(plainFile);
+             CompoundDictionary filtered = CompoundDictionary.acquire(filteredFile)) {
+            assertNull(plain.getPrefilter());
+            assertEquals(prefilter.toString(), filtered.getPrefilter().toString());
+            
+            GermanCompoundSplitter splitter = new GermanCompoundSplitter(plain);
+            int nonCompounds = 0;
+            int rejected = 0;
+            for (String line : Files.readAllLines(Paths.get("src/data/morphy-google-intersect.20000"))) {
+                char[] term = line.split("\\s")[0].toCharArray();
+                boolean pass = prefilter.mayDecompose(term, 0, term.length);
+                if (splitter.split(new String(term)).isEmpty()) {
+                    nonCompounds++;
+                    rejected += pass ? 0 : 1;
+                } else {
+                    assertTrue(new String(term), pass);
+                }
+            }
+            assertTrue(rejected > nonCompounds / 2);
+        }
+    }
+}
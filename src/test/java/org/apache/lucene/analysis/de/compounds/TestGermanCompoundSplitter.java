@@ -1,8 +1,16 @@
 package org.apache.lucene.analysis.de.compounds;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 import junit.framework.TestCase;
 
 
@@ -21,8 +29,7 @@ public class TestGermanCompoundSplitter extends TestCase {
         splitter = new GermanCompoundSplitter();
     }
     
-    public void testSplitterBasic() throws Exception {
-        List<String> wordsList = Arrays.asList(
+    static final List<String> WORDS = Arrays.asList(
                 "sünderecke",                     // ambigious, 2 forms
                 "Servicebereich",
                 "Finanzgrundsatzangelegenheiten", // financial policy matters
@@ -42,8 +49,10 @@ public class TestGermanCompoundSplitter extends TestCase {
                 "Exportfinanzierung",             // export financing
                 "Versicherungskaufmann",          // insurance salesman
                 "Anwendungsbetreuer"              // application administrator (IT)
-        );
-        ListIterator<String> it = wordsList.listIterator();
+    );
+    
+    public void testSplitterBasic() throws Exception {
+        ListIterator<String> it = WORDS.listIterator();
         
         while(it.hasNext()) {
             String germanWord = it.next();
@@ -57,4 +66,432 @@ public class TestGermanCompoundSplitter extends TestCase {
             System.out.println(String.format("split test[%d]: input: %s  split: %s", idx, germanWord, wordSplit.toString()));
         }
     }
+    
+    /**
+     * All splitters share the same, once loaded dictionary.
+     */
+    public void testDictionaryShared() throws Exception {
+        GermanCompoundSplitter other = new GermanCompoundSplitter();
+        assertSame(splitter.getDictionary(), other.getDictionary());
+        assertSame(CompoundDictionary.getDefault(), other.getDictionary());
+        assertTrue(CompoundDictionary.getDefault().ramBytesUsed() > 0);
+        
+        // acquiring the bundled resource again returns the registered instance.
+        CompoundDictionary acquired = CompoundDictionary.acquire(GermanCompoundSplitter.DICTIONARY_FILE);
+        try {
+            assertSame(CompoundDictionary.getDefault(), acquired);
+        } finally {
+            acquired.close();
+        }
+        assertEquals(splitter.split("Reisekosten"), other.split("Reisekosten"));
+    }
+    
+    /**
+     * One splitter instance is shared by several threads, every thread must see the same
+     * decompositions as a single threaded reference run.  The throughput is measured by the
+     * SplitBenchmark of the benchmarks module, on one thread and on all cores.
+     */
+    public void testConcurrentSplit() throws Exception {
+        final List<List<ArrayList<CharSequence>>> expected = new ArrayList<>();
+        for (String word : WORDS) {
+            expected.add(splitter.split(word));
+        }
+        
+        final int rounds = 200;
+        final int threads = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<List<List<ArrayList<CharSequence>>>>> tasks = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int shift = t;
+                tasks.add(() -> {
+                    // every thread starts at a different word, so the threads split different words at once.
+                    List<List<ArrayList<CharSequence>>> results = new ArrayList<>();
+                    for (int i = 0; i < rounds * WORDS.size(); i++) {
+                        results.add(splitter.split(WORDS.get((i + shift) % WORDS.size())));
+                    }
+                    return results;
+                });
+            }
+            List<Future<List<List<ArrayList<CharSequence>>>>> futures = executor.invokeAll(tasks);
+            for (int t = 0; t < threads; t++) {
+                List<List<ArrayList<CharSequence>>> results = futures.get(t).get();
+                assertEquals(rounds * WORDS.size(), results.size());
+                for (int i = 0; i < results.size(); i++) {
+                    assertEquals("thread " + t + ", split " + i, expected.get((i + t) % WORDS.size()), results.get(i));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    /**
+     * The batch, spliterator and collector forms return the same decompositions as split(),
+     * in input order.
+     */
+    public void testSplitAll() throws Exception {
+        List<String> terms = new ArrayList<>();
+        List<List<ArrayList<CharSequence>>> expected = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            String word = WORDS.get(i % WORDS.size());
+            terms.add(word);
+            expected.add(splitter.split(word));
+        }
+
+        assertEquals(expected, splitter.splitAll(terms));
+        assertEquals(expected.subList(0, 10), splitter.splitAll(terms.subList(0, 10)));
+        assertTrue(splitter.splitAll(new ArrayList<String>()).isEmpty());
+
+        List<List<ArrayList<CharSequence>>> streamed = StreamSupport.stream(splitter.spliterator(terms.spliterator()), true)
+                .map(Map.Entry::getValue)
+                .collect(Collectors.toList());
+        assertEquals(expected, streamed);
+
+        Map<String, List<ArrayList<CharSequence>>> collected = terms.parallelStream()
+                .collect(splitter.toDecompositions());
+        assertEquals(WORDS, new ArrayList<>(collected.keySet()));
+        for (String word : WORDS) {
+            assertEquals(splitter.split(word), collected.get(word));
+        }
+    }
+
+    public void testDecompositionCache() throws Exception {
+        DecompositionCache cache = new DecompositionCache(1 << 16);
+        GermanCompoundSplitter cached = new GermanCompoundSplitter(splitter.getDictionary(), cache);
+        
+        for (int round = 0; round < 3; round++) {
+            for (String word : WORDS) {
+                assertEquals(splitter.split(word), cached.split(word));
+            }
+        }
+        // precomputed words are answered before the cache is consulted.
+        int searched = WORDS.size() - precomputed(WORDS);
+        assertEquals(searched, cache.missCount());
+        assertEquals(2 * searched, cache.hitCount());
+        assertEquals(0, cache.evictionCount());
+        assertEquals(searched, cache.size());
+        
+        // caches are shared per dictionary and capacity.
+        assertSame(CompoundDictionary.getDefault().getCache(1000), CompoundDictionary.getDefault().getCache(1000));
+    }
+    
+    private static int precomputed(List<String> words) throws Exception {
+        DecompositionTable table = CompoundDictionary.getDefault().getDecompositionTable();
+        SplitContext context = new SplitContext();
+        int count = 0;
+        for (String word : words) {
+            if (table != null && table.get(word.toCharArray(), 0, word.length(), context)) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Entries hit twice are protected from a scan of one-off terms.
+     */
+    public void testDecompositionCacheEviction() throws Exception {
+        DecompositionCache cache = new DecompositionCache(100);
+        int[] none = new int[] {0};
+        
+        cache.put(key("frequent"), none);
+        assertTrue(cache.get(context("frequent")));
+        for (int i = 0; i < 100; i++) {
+            cache.put(key("oneoff" + i), none);
+        }
+        assertTrue(cache.get(context("frequent")));
+        assertFalse(cache.get(context("oneoff0")));
+        assertTrue(cache.evictionCount() > 0);
+        assertTrue(cache.weight() <= cache.maxWeight());
+    }
+    
+    private static DecompositionCache.CacheKey key(String term) {
+        return new DecompositionCache.CacheKey().set(term.toCharArray(), 0, term.length());
+    }
+    
+    private static SplitContext context(String term) {
+        SplitContext context = new SplitContext();
+        context.reset(term.toCharArray(), 0, term.length());
+        return context;
+    }
+    
+    /**
+     * The split points API reports the same decompositions, as offsets into the caller's buffer.
+     */
+    public void testSplitPoints() throws Exception {
+        SplitContext context = new SplitContext();
+        char[] buffer = new char[64];
+        for (String word : WORDS) {
+            // the term does not start at the beginning of the buffer.
+            word.getChars(0, word.length(), buffer, 3);
+            int count = splitter.split(buffer, 3, word.length(), context);
+            
+            List<ArrayList<CharSequence>> expected = splitter.split(word);
+            assertEquals(expected.size(), count);
+            for (int d = 0; d < count; d++) {
+                assertEquals(expected.get(d).size(), context.partCount(d));
+                for (int p = 0; p < context.partCount(d); p++) {
+                    String part = word.substring(context.partStart(d, p), context.partEnd(d, p));
+                    assertEquals(expected.get(d).get(p), part.toLowerCase());
+                }
+            }
+        }
+        
+        String word = "Finanzgrundsatzangelegenheiten";
+        assertEquals(1, splitter.split(word.toCharArray(), 0, word.length(), context));
+        assertEquals(3, context.partCount(0));
+        assertEquals(6, context.partEnd(0, 0));
+        assertEquals(15, context.partEnd(0, 1));
+    }
+    
+    /**
+     * Case is folded while the term is walked, the term buffer is never modified and the cache
+     * matches terms regardless of their case.
+     */
+    public void testCaseFoldedInPlace() throws Exception {
+        GermanCompoundSplitter cached = new GermanCompoundSplitter(
+            CompoundDictionary.getDefault(), new DecompositionCache(1 << 16));
+        SplitContext context = new SplitContext();
+        
+        // not precomputed, the cache is consulted.
+        assertEquals(0, precomputed(List.of("Kundenberater")));
+        char[] upper = "KUNDENBERATER".toCharArray();
+        assertEquals(1, cached.split(upper, 0, upper.length, context));
+        assertEquals(6, context.partEnd(0, 0));
+        assertEquals("KUNDENBERATER", new String(upper));
+        assertEquals(List.of(List.of("kunden", "berater")), cached.split("KundenBerater"));
+        
+        char[] lower = "kundenberater".toCharArray();
+        assertEquals(1, cached.split(lower, 0, lower.length, context));
+        assertEquals(2, cached.getCache().hitCount());
+        
+        // precomputed words are folded the same way.
+        char[] precomputed = "REISEKOSTEN".toCharArray();
+        assertEquals(1, cached.split(precomputed, 0, precomputed.length, context));
+        assertEquals(5, context.partEnd(0, 0));
+        assertEquals("REISEKOSTEN", new String(precomputed));
+    }
+    
+    /**
+     * Once the context is warm, splitting does not allocate.
+     */
+    public void testSplitPointsAllocationFree() throws Exception {
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long thread = Thread.currentThread().getId();
+        
+        SplitContext context = new SplitContext();
+        char[][] terms = new char[WORDS.size()][];
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = WORDS.get(i).toCharArray();
+        }
+        for (int round = 0; round < 200; round++) {
+            for (char[] term : terms) {
+                splitter.split(term, 0, term.length, context);
+            }
+        }
+        
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int round = 0; round < 100; round++) {
+            for (char[] term : terms) {
+                splitter.split(term, 0, term.length, context);
+            }
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        // allow for some noise of the measurement itself.
+        assertTrue("allocated " + allocated + " bytes", allocated < 100 * terms.length);
+    }
+    
+    /**
+     * Decompositions of the lattice search, as produced by the original recursive search.
+     */
+    public void testKnownDecompositions() throws Exception {
+        assertEquals("[[sünde, recke], [sünder, ecke]]", splitter.split("sünderecke").toString());
+        assertEquals("[[finanz, grundsatz, angelegenheiten]]", splitter.split("Finanzgrundsatzangelegenheiten").toString());
+        assertEquals("[[versicherung, kauf, mann]]", splitter.split("Versicherungskaufmann").toString());
+        assertEquals("[[finanz, buch, haltung, leitung]]", splitter.split("Finanzbuchhaltungsleitung").toString());
+        assertEquals("[]", splitter.split("Fahrrad").toString());
+    }
+    
+    /**
+     * The deprecated listener API reports the decompositions of split(), glue morphemes included.
+     */
+    @SuppressWarnings("deprecation")
+    public void testDecompositionListener() throws Exception {
+        final List<String> chunks = new ArrayList<>();
+        splitter.split("Versicherungskaufmann", (utf32, decomposition) -> {
+            decomposition.descendingIterator().forEachRemaining(chunk -> chunks.add(chunk.toString()));
+        });
+        assertEquals(Arrays.asList("versicherung", "s<G>", "kauf", "mann"), chunks);
+        
+        List<List<String>> sorted = new ArrayList<>();
+        sorted.add(Arrays.asList("sünder", "ecke"));
+        sorted.add(Arrays.asList("sünde", "recke"));
+        sorted.add(Arrays.asList("finanz", "grund", "satz"));
+        GermanCompoundSplitter.sortListBySizeDescending(sorted);
+        assertEquals("[[finanz, grund, satz], [sünde, recke], [sünder, ecke]]", sorted.toString());
+    }
+    
+    /**
+     * The best-k search ranks decompositions by cost and finds the cheapest ones first.
+     */
+    public void testSplitBest() throws Exception {
+        assertTrue(CompoundDictionary.getDefault().isWeighted());
+        assertEquals("[[finanz, grundsatz, angelegenheiten], [finanz, grund, satz, angelegenheiten]]",
+            splitter.splitBest("Finanzgrundsatzangelegenheiten", 3).toString());
+        assertEquals("[[reise, kosten]]", splitter.splitBest("Reisekosten", 1).toString());
+        assertEquals("[]", splitter.splitBest("Fahrrad", 3).toString());
+        
+        // every best decomposition covers the term, its parts in order.
+        SplitContext context = new SplitContext();
+        for (String word : WORDS) {
+            char[] term = word.toCharArray();
+            int count = splitter.splitBest(term, 0, term.length, 4, context);
+            assertTrue(count <= 4);
+            for (int d = 0; d < count; d++) {
+                assertTrue(context.partCount(d) > 1);
+                assertEquals(0, context.partStart(d, 0));
+                assertEquals(term.length, context.partEnd(d, context.partCount(d) - 1));
+            }
+        }
+    }
+    
+    /**
+     * Configured limits cut the work per token short and are counted.
+     */
+    public void testSplitLimits() throws Exception {
+        SplitContext context = new SplitContext();
+        char[] term = "Finanzbuchhaltungsleitung".toCharArray();
+        
+        SplitLimits steps = new SplitLimits(3, 0, 0, SplitLimits.Fallback.BEST_SO_FAR);
+        GermanCompoundSplitter limited = new GermanCompoundSplitter(CompoundDictionary.getDefault(), null, steps);
+        int count = limited.split(term, 0, term.length, context);
+        assertTrue(context.truncated());
+        assertTrue(count < splitter.split(term, 0, term.length, new SplitContext()));
+        assertEquals(1, steps.stepLimitCount());
+        assertEquals(0, steps.arcLimitCount());
+        
+        SplitLimits arcs = new SplitLimits(0, 30, 0, SplitLimits.Fallback.PASS_THROUGH);
+        limited = new GermanCompoundSplitter(CompoundDictionary.getDefault(), null, arcs);
+        assertEquals(0, limited.split(term, 0, term.length, context));
+        assertTrue(context.truncated());
+        assertEquals(0, limited.splitBest(term, 0, term.length, 2, context));
+        assertEquals(2, arcs.arcLimitCount());
+        
+        // short terms stay within the limits.
+        char[] small = "Reisekosten".toCharArray();
+        assertEquals(1, limited.split(small, 0, small.length, context));
+        assertFalse(context.truncated());
+        assertEquals(2, arcs.arcLimitCount());
+    }
+    
+    /**
+     * Compound prefixes are detached from terms that are no words, adding decompositions of the
+     * remainder to those of the whole term.
+     */
+    public void testCompoundPrefixes() throws Exception {
+        // the bundled dictionary is compiled without prefixes.
+        assertNull(CompoundDictionary.getDefault().getPrefixes());
+        assertEquals("[]", splitter.split("Lehrkräfte").toString());
+        
+        String[] prefixes = CompileCompoundDictionaries.readPrefixes(
+            Paths.get("src/data/compound-prefixes.txt")).toArray(new String[0]);
+        try (CompoundDictionary variant = CompoundDictionary.getDefault().withPrefixes(prefixes)) {
+            GermanCompoundSplitter prefixed = new GermanCompoundSplitter(variant);
+            assertEquals("[[lehr, kräfte]]", prefixed.split("Lehrkräfte").toString());
+            assertEquals("[[rück, gabe, wert], [rückgabe, wert]]", prefixed.split("Rückgabewert").toString());
+            // the decompositions of the whole term are kept.
+            assertEquals("[[rück, haltlos], [rückhalt, los]]", prefixed.split("rückhaltlos").toString());
+            // nothing is detached from words.
+            for (String word : Arrays.asList("Erdbeere", "Österreich", "Fahrrad")) {
+                assertEquals(word, splitter.split(word).toString(), prefixed.split(word).toString());
+            }
+            // a remainder that is neither a word nor a compound adds nothing.
+            assertEquals("[]", prefixed.split("Rückxyz").toString());
+        }
+        
+        try (CompoundDictionary variant = CompoundDictionary.getDefault().withPrefixes("Xyz")) {
+            GermanCompoundSplitter prefixed = new GermanCompoundSplitter(variant);
+            assertEquals("[]", splitter.split("Xyzreisekosten").toString());
+            assertEquals("[[xyz, reise, kosten]]", prefixed.split("Xyzreisekosten").toString());
+            assertEquals(1, variant.getPrefixes().size());
+            assertEquals(splitter.split("Finanzgrundsatzangelegenheiten").toString(),
+                prefixed.split("Finanzgrundsatzangelegenheiten").toString());
+        }
+        // no prefixes disable the prefix stage.
+        try (CompoundDictionary variant = CompoundDictionary.getDefault().withPrefixes()) {
+            assertNull(variant.getPrefixes());
+            assertEquals("[]", new GermanCompoundSplitter(variant).split("Lehrkräfte").toString());
+        }
+    }
+    
+    /**
+     * Prefixes detached one after the other share the work budget of the term.
+     */
+    public void testRepeatedPrefixes() throws Exception {
+        char[] term = ("lehr".repeat(5000) + "kraft").toCharArray();
+        SplitContext context = new SplitContext();
+        try (CompoundDictionary variant = CompoundDictionary.getDefault().withPrefixes("Lehr")) {
+            GermanCompoundSplitter prefixed = new GermanCompoundSplitter(variant);
+            assertEquals(1, prefixed.split(term, 0, term.length, context));
+            assertFalse(context.truncated());
+            assertEquals(5001, context.partCount(0));
+            
+            SplitLimits limits = new SplitLimits(100, 1000, 0, SplitLimits.Fallback.BEST_SO_FAR);
+            GermanCompoundSplitter limited = new GermanCompoundSplitter(variant, null, limits);
+            limited.split(term, 0, term.length, context);
+            assertTrue(context.truncated());
+            assertEquals(1, limits.stepLimitCount() + limits.arcLimitCount());
+        }
+    }
+    
+    /**
+     * Long and repetitive tokens stay within the polynomial work budget.
+     */
+    public void testAdversarialTokens() throws Exception {
+        SplitContext context = new SplitContext();
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            repeated.append("reise");
+        }
+        String[] tokens = {
+            repeated.toString(),
+            repeated.toString().replace("reise", "ens"),
+            repeated.toString().replace("reise", "e"),
+            repeated.toString().replace("reise", "ab")
+        };
+        for (String token : tokens) {
+            char[] chars = token.toCharArray();
+            splitter.split(chars, 0, chars.length, context);
+            // the budget is overdrawn by at most the step that hit it.
+            assertTrue(context.steps >= -1);
+            assertEquals(context.steps < 0, context.truncated());
+        }
+        char[] chars = tokens[0].toCharArray();
+        assertTrue(splitter.split(chars, 0, chars.length, context) > 0);
+    }
+    
+    /**
+     * The lattice is walked, completed and enumerated without recursion, the stack depth does
+     * not grow with the length of the term.
+     */
+    public void testLongTokens() throws Exception {
+        SplitContext context = new SplitContext();
+        char[] chars = "reise".repeat(10000).toCharArray();
+        int count = splitter.split(chars, 0, chars.length, context);
+        for (int d = 0; d < count; d++) {
+            assertEquals(chars.length, context.partEnd(d, context.partCount(d) - 1));
+        }
+        count = splitter.splitBest(chars, 0, chars.length, 3, context);
+        assertTrue(count > 0);
+        for (int d = 0; d < count; d++) {
+            assertEquals(0, context.partStart(d, 0));
+            assertEquals(chars.length, context.partEnd(d, context.partCount(d) - 1));
+        }
+        assertEquals(Integer.MAX_VALUE, GermanCompoundSplitter.maxSteps(46340));
+    }
 }
@@ -1,11 +1,23 @@
 package org.apache.lucene.analysis.de.compounds;
 
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
+import org.apache.lucene.analysis.CharArraySet;
 import org.apache.lucene.tests.analysis.BaseTokenStreamTestCase;
 import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.miscellaneous.SetKeywordMarkerFilter;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.analysis.util.FilesystemResourceLoader;
 
 /**
  * Test the functionality of the GraphGermanCompoundTokenFilter.
@@ -75,8 +87,8 @@ public class TestGraphGermanCompoundTokenFilter extends BaseTokenStreamTestCase
         
         assertAnalyzesTo(analyzerFalse, input,
                 new String[] {"anwendung", "betreuer"}, // terms
-                new int[] {0, 0},          // startOffsets
-                new int[] {18, 18},        // endOffsets
+                new int[] {0, 9},          // startOffsets
+                new int[] {9, 18},         // endOffsets
                 new String[] {WORD, WORD}, // types
                 new int[] {1, 1},          // posIncrements
                 new int[] {1, 1});         // posLengths
@@ -94,8 +106,8 @@ public class TestGraphGermanCompoundTokenFilter extends BaseTokenStreamTestCase
         
         assertAnalyzesTo(analyzerFalse, input,
                 new String[] {"Anwendungsbetreuer", "anwendung", "betreuer"}, // terms
-                new int[] {0, 0, 0},             // startOffsets
-                new int[] {18, 18, 18},          // endOffsets
+                new int[] {0, 0, 9},             // startOffsets
+                new int[] {18, 9, 18},           // endOffsets
                 new String[] {WORD, WORD, WORD}, // types
                 new int[] {1, 0, 1},             // posIncrements
                 new int[] {2, 1, 1});            // posLengths
@@ -132,8 +144,8 @@ public class TestGraphGermanCompoundTokenFilter extends BaseTokenStreamTestCase
         
         assertAnalyzesTo(analyzerFalse, input,
                 new String[] {"Finanzgrundsatzangelegenheiten", "finanz", "grundsatz", "angelegenheiten"},  // terms
-                new int[] {0, 0, 0, 0},                // startOffsets
-                new int[] {30, 30, 30, 30},            // endOffsets
+                new int[] {0, 0, 6, 15},               // startOffsets
+                new int[] {30, 6, 15, 30},             // endOffsets
                 new String[] {WORD, WORD, WORD, WORD}, // types
                 new int[] {1, 0, 1, 1},                // posIncrements
                 new int[] {3, 1, 1, 1});               // posLengths
@@ -150,13 +162,27 @@ public class TestGraphGermanCompoundTokenFilter extends BaseTokenStreamTestCase
         
         Analyzer analyzerFalse = new GraphGermanCompoundAnalyzer(minWordSize, onlyLongestMatch, preserveOriginal);
         
+        // sünde and sünder end at different boundaries, the two decompositions are parallel paths.
         assertAnalyzesTo(analyzerFalse, input,
                 new String[] {"sünderecke", "sünde", "sünder", "recke", "ecke"},
-                new int[] {0, 0, 0, 0, 0},
-                new int[] {10, 10, 10, 10, 10},
+                new int[] {0, 0, 0, 5, 6},
+                new int[] {10, 5, 6, 10, 10},
                 new String[] {WORD, WORD, WORD, WORD, WORD},
-                new int[] {1, 0, 0, 1, 0},
-                new int[] {2, 1, 1, 1, 1});
+                new int[] {1, 0, 0, 1, 1},
+                new int[] {3, 1, 2, 2, 1});
+    }
+    
+    public void testGlueOverSameSpan() throws Exception {
+        Analyzer analyzer = new GraphGermanCompoundAnalyzer(1, false, true);
+        
+        // [mitsprach, e, recht] and [mitsprach, er, echt]: recht and echt span the same boundaries.
+        assertAnalyzesTo(analyzer, "mitspracherecht",
+                new String[] {"mitspracherecht", "mitsprach", "recht", "echt"},
+                new int[] {0, 0, 9, 9},
+                new int[] {15, 9, 15, 15},
+                new String[] {WORD, WORD, WORD, WORD},
+                new int[] {1, 0, 1, 0},
+                new int[] {2, 1, 1, 1});
     }
     
     public void testLongestMatchTrue() throws Exception {
@@ -172,13 +198,142 @@ public class TestGraphGermanCompoundTokenFilter extends BaseTokenStreamTestCase
         
         assertAnalyzesTo(analyzerFalse, input,
                 new String[] {"sünderecke", "sünder", "ecke"},
-                new int[] {0, 0, 0},
-                new int[] {10, 10, 10},
+                new int[] {0, 0, 6},
+                new int[] {10, 6, 10},
                 new String[] {WORD, WORD, WORD},
                 new int[] {1, 0, 1},
                 new int[] {2, 1, 1});
     }
     
+    /**
+     * Sequences beyond the sub-word limit are dropped, or the token passes through.
+     */
+    public void testSubwordLimit() throws Exception {
+        final String input = "sünderecke";
+        
+        SplitLimits limits = new SplitLimits(0, 0, 3, SplitLimits.Fallback.BEST_SO_FAR);
+        assertAnalyzesTo(limitedAnalyzer(limits), input,
+                new String[] {"sünderecke", "sünde", "recke"},
+                new int[] {0, 0, 5},
+                new int[] {10, 5, 10},
+                new String[] {WORD, WORD, WORD},
+                new int[] {1, 0, 1},
+                new int[] {2, 1, 1});
+        assertTrue(limits.subwordLimitCount() > 0);
+        
+        limits = new SplitLimits(0, 0, 3, SplitLimits.Fallback.PASS_THROUGH);
+        assertAnalyzesTo(limitedAnalyzer(limits), input,
+                new String[] {"sünderecke"},
+                new int[] {0},
+                new int[] {10},
+                new String[] {WORD},
+                new int[] {1},
+                new int[] {1});
+        assertTrue(limits.subwordLimitCount() > 0);
+    }
+    
+    /**
+     * Factories with different limits share the cache of their dictionary, a token cut short by
+     * the limits of one must not be cached for the other.
+     */
+    public void testLimitsDoNotLeakThroughCache() throws Exception {
+        Map<String, String> args = new HashMap<>();
+        args.put("minWordSize", "1");
+        args.put("preserveOriginal", "false");
+        args.put("cacheSize", "65536");
+        args.put("maxArcs", "5");
+        args.put("limitFallback", "passThrough");
+        GraphGermanCompoundTokenFilterFactory limited = new GraphGermanCompoundTokenFilterFactory(args);
+        
+        args = new HashMap<>();
+        args.put("minWordSize", "1");
+        args.put("preserveOriginal", "false");
+        args.put("cacheSize", "65536");
+        GraphGermanCompoundTokenFilterFactory unlimited = new GraphGermanCompoundTokenFilterFactory(args);
+        assertSame(limited.getDecompositionCache(), unlimited.getDecompositionCache());
+        
+        final String input = "Kundenberaterteam Versicherungskaufmannsgehilfe";
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader(input));
+        assertTokenStreamContents(limited.create(tokenizer),
+                new String[] {"Kundenberaterteam", "Versicherungskaufmannsgehilfe"});
+        assertTrue(limited.getSplitLimits().arcLimitCount() > 0);
+        
+        tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader(input));
+        assertTokenStreamContents(unlimited.create(tokenizer),
+                new String[] {"kunden", "berater", "team", "versicherung", "kauf", "manns", "gehilfe"},
+                null, null, null, null, null, null);
+    }
+    
+    private static Analyzer limitedAnalyzer(SplitLimits limits) {
+        final GermanCompoundSplitter splitter = new GermanCompoundSplitter(CompoundDictionary.getDefault(), null, limits);
+        return new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                Tokenizer tokenizer = new WhitespaceTokenizer();
+                return new TokenStreamComponents(tokenizer, new GraphGermanCompoundTokenFilter(tokenizer, splitter, 1, false, true));
+            }
+        };
+    }
+    
+    /**
+     * Flat output merges the boundaries of all decompositions into one chain of positions, as
+     * FlattenGraphFilter would, and emits shared sub-words once.
+     */
+    public void testFlatOutput() throws Exception {
+        Analyzer flat = flatAnalyzer(true);
+        // [arbeit, sein, satz] and [arbeit, einsatz]: einsatz spans sein and satz.
+        assertAnalyzesTo(flat, "arbeitseinsatz ende",
+                new String[] {"arbeitseinsatz", "arbeit", "sein", "einsatz", "satz", "ende"},
+                new int[] {0, 0, 6, 6, 10, 15},
+                new int[] {14, 6, 10, 14, 14, 19},
+                new String[] {WORD, WORD, WORD, WORD, WORD, WORD},
+                new int[] {1, 0, 1, 0, 1, 1},
+                new int[] {3, 1, 1, 2, 1, 1});
+        // [sünde, recke] and [sünder, ecke]: the inner boundaries share a position, and its offsets.
+        assertAnalyzesTo(flat, "sünderecke",
+                new String[] {"sünderecke", "sünde", "sünder", "recke", "ecke"},
+                new int[] {0, 0, 0, 5, 5},
+                new int[] {10, 6, 6, 10, 10},
+                new String[] {WORD, WORD, WORD, WORD, WORD},
+                new int[] {1, 0, 0, 1, 0},
+                new int[] {2, 1, 1, 1, 1});
+        
+        assertAnalyzesTo(flatAnalyzer(false), "arbeitseinsatz",
+                new String[] {"arbeit", "sein", "einsatz", "satz"},
+                new int[] {0, 6, 6, 10},
+                new int[] {6, 10, 14, 14},
+                new String[] {WORD, WORD, WORD, WORD},
+                new int[] {1, 1, 0, 1},
+                new int[] {1, 1, 2, 1});
+        
+        Map<String, String> args = new HashMap<>();
+        args.put("minWordSize", "1");
+        args.put("outputMode", "flat");
+        GraphGermanCompoundTokenFilterFactory factory = new GraphGermanCompoundTokenFilterFactory(args);
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader("arbeitseinsatz"));
+        assertTokenStreamContents(factory.create(tokenizer),
+                new String[] {"arbeitseinsatz", "arbeit", "sein", "einsatz", "satz"},
+                null, null, null,
+                new int[] {1, 0, 1, 0, 1},
+                new int[] {3, 1, 1, 2, 1},
+                null);
+    }
+    
+    private static Analyzer flatAnalyzer(boolean preserveOriginal) {
+        final GermanCompoundSplitter splitter = new GermanCompoundSplitter(CompoundDictionary.getDefault());
+        return new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                Tokenizer tokenizer = new WhitespaceTokenizer();
+                return new TokenStreamComponents(tokenizer, new GraphGermanCompoundTokenFilter(tokenizer, splitter, 1, false, preserveOriginal,
+                        GraphGermanCompoundTokenFilter.DEFAULT_BEST_DECOMPOSITIONS, GraphGermanCompoundTokenFilter.OutputMode.FLAT));
+            }
+        };
+    }
+    
     public void testMinWordSize() throws Exception {
         
         // amigious - should generate two forms... [sünde, recke] and [sünder, ecke]
@@ -199,4 +354,95 @@ public class TestGraphGermanCompoundTokenFilter extends BaseTokenStreamTestCase
                 new int[] {1});
     }
     
+    /**
+     * Protected words and keywords pass through without being split.
+     */
+    public void testProtectedWords() throws Exception {
+        final CharArraySet protectedWords = new CharArraySet(Arrays.asList("sünderecke"), true);
+        final GermanCompoundSplitter splitter = new GermanCompoundSplitter(CompoundDictionary.getDefault());
+        Analyzer analyzer = new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                Tokenizer tokenizer = new WhitespaceTokenizer();
+                return new TokenStreamComponents(tokenizer, new GraphGermanCompoundTokenFilter(tokenizer, splitter, 1, false, true,
+                        GraphGermanCompoundTokenFilter.DEFAULT_BEST_DECOMPOSITIONS, GraphGermanCompoundTokenFilter.OutputMode.GRAPH, protectedWords));
+            }
+        };
+        assertAnalyzesTo(analyzer, "Sünderecke arbeitseinsatz",
+                new String[] {"Sünderecke", "arbeitseinsatz", "arbeit", "sein", "einsatz", "satz"},
+                null, null, null,
+                new int[] {1, 1, 0, 1, 0, 1},
+                new int[] {1, 3, 1, 1, 2, 1});
+        
+        Analyzer keywords = new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                Tokenizer tokenizer = new WhitespaceTokenizer();
+                TokenStream marked = new SetKeywordMarkerFilter(tokenizer, new CharArraySet(Arrays.asList("arbeitseinsatz"), false));
+                return new TokenStreamComponents(tokenizer, new GraphGermanCompoundTokenFilter(marked, splitter, 1, false, true));
+            }
+        };
+        assertAnalyzesTo(keywords, "arbeitseinsatz sünderecke",
+                new String[] {"arbeitseinsatz", "sünderecke", "sünde", "sünder", "recke", "ecke"});
+        
+        Path conf = createTempDir("protected");
+        Files.write(conf.resolve("protected.txt"), Arrays.asList("# brands", "SÜNDERECKE"), StandardCharsets.UTF_8);
+        Map<String, String> args = new HashMap<>();
+        args.put("minWordSize", "1");
+        args.put("protected", "protected.txt");
+        args.put("ignoreCase", "true");
+        GraphGermanCompoundTokenFilterFactory factory = new GraphGermanCompoundTokenFilterFactory(args);
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        try {
+            factory.create(tokenizer);
+            fail("protected words are loaded by inform()");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        factory.inform(new FilesystemResourceLoader(conf, getClass().getClassLoader()));
+        tokenizer.setReader(new StringReader("sünderecke"));
+        assertTokenStreamContents(factory.create(tokenizer), new String[] {"sünderecke"});
+    }
+    
+    /**
+     * Once warmed up, decompounding and emitting sub-words does not allocate per token.
+     */
+    public void testEmissionAllocationFree() throws Exception {
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long thread = Thread.currentThread().getId();
+        
+        final String input = String.join(" ", TestGermanCompoundSplitter.WORDS);
+        final int rounds = 100;
+        StringReader[] readers = new StringReader[2 * rounds];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new StringReader(input);
+        }
+        
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        long tokens = 0;
+        long before = 0;
+        try (TokenStream stream = new GraphGermanCompoundTokenFilter(tokenizer, 1, false, true)) {
+            for (int round = 0; round < readers.length; round++) {
+                if (round == rounds) {
+                    before = threads.getThreadAllocatedBytes(thread);
+                    tokens = 0;
+                }
+                tokenizer.setReader(readers[round]);
+                stream.reset();
+                while (stream.incrementToken()) {
+                    tokens++;
+                }
+                stream.end();
+                stream.close();
+            }
+            long allocated = threads.getThreadAllocatedBytes(thread) - before;
+            // allow for some noise of the measurement itself.
+            assertTrue("allocated " + allocated + " bytes for " + tokens + " tokens", allocated < 8 * tokens);
+        }
+    }
+    
 }